@@ -4,84 +4,665 @@ import com.github.davityle.ml.writtenbyprofessor.Matrix;
 import com.github.davityle.ml.writtenbyprofessor.SupervisedLearner;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.IntStream;
 
 public class DecisionTree extends SupervisedLearner {
 
-    private Node rootNode;
+    // Length of the runs sort insertion sorts before merging them
+    private static final int INSERTION_RUN = 16;
+
+    private int parallelRows = 4096;
+    private int maxDepth = 64;
+    private int minLeaf = 1;
+    private double minGain = 1e-6;
+    private boolean verbose;
+
+    // The trained tree in breadth-first order, one entry per node in each array. Node 0 is the root;
+    // the children of node n are nodes firstChild[n] to firstChild[n] + childCount[n] - 1, and
+    // leaves have a feature of -1. threshold is NaN for nominal splits.
+    private int[] feature, firstChild, childCount;
+    private double[] threshold, answer;
+
+    // Sets the number of rows a node needs before its children and its candidate features are
+    // evaluated as separate fork-join tasks. Integer.MAX_VALUE builds the tree on the calling thread.
+    public void setParallelThreshold(int rows) {
+        this.parallelRows = rows;
+    }
+
+    // Sets the depth below which no node is split; the root is at depth 0
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    // Sets the number of rows (by weight) each side of a continuous split must keep
+    public void setMinLeaf(int minLeaf) {
+        this.minLeaf = minLeaf;
+    }
+
+    // Sets how much a continuous split must lower the entropy of its node to be made
+    public void setMinGain(double minGain) {
+        this.minGain = minGain;
+    }
+
+    // Prints the tree once it is trained
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
 
     @Override
     public void train(Matrix features, Matrix labels) throws Exception {
-        rootNode = createNode(features, labels, new ArrayList<>());
-        System.out.println(rootNode);
+        int parallel = ForkJoinPool.getCommonPoolParallelism() > 1 ? parallelRows : Integer.MAX_VALUE;
+        build(new Build(this, features, labels, null, sortOrders(features), parallel, 0, null));
+        if (verbose)
+            System.out.print(print(0, "", true));
+    }
+
+    // Trains on the rows with a non-zero weight, counting row r as weights[r] rows, on the calling
+    // thread. orders must come from sortOrders(features); they are only read, so every tree trained
+    // on the same features can be given the same orders. When featuresPerSplit is positive each
+    // node only considers that many of its candidate features, picked with random.
+    void train(Matrix features, Matrix labels, int[] weights, int[][] orders, int featuresPerSplit, Random random) {
+        build(new Build(this, features, labels, weights, orders, Integer.MAX_VALUE, featuresPerSplit, random));
+    }
+
+    // Grows the tree and keeps only its flattened arrays, so the linked nodes can be collected
+    private void build(Build build) {
+        boolean[] used = new boolean[build.features.cols()];
+        Node root;
+        if (build.rows.length >= build.parallelRows)
+            root = ForkJoinPool.commonPool().invoke(new BuildTask(build, 0, build.rows.length, used, 0));
+        else
+            root = createNode(build, 0, build.rows.length, used, 0);
+        flatten(root);
     }
 
     @Override
     public void predict(double[] features, double[] labels) throws Exception {
-        labels[0] = rootNode.getAnswer(features);
-    }
-
-    private Node createNode(Matrix features, Matrix labels, List<Integer> ints) {
-        Node node = nextNode(features, labels, ints);
-        if (node.featureIndex > -1 && ints.size() != features.cols()) {
-            List<Integer> subInts = new ArrayList<>(ints);
-            subInts.add(node.featureIndex);
-            node.setSubNodes(IntStream.range(0, features.valueCount(node.featureIndex)).mapToObj(i -> {
-                if (node.entropy[i] == 1.0 || node.entropy[i] == 0.0) {
-                    return new Node();
-                } else {
-                    Matrix subFeatures = new Matrix(features, 0, 0, 0, features.cols());
-                    Matrix subLabels = new Matrix(labels, 0, 0, 0, labels.cols());
-                    for (int j = 0; j < features.rows(); j++) {
-                        if (features.get(j, node.featureIndex) == i) {
-                            try {
-                                subFeatures.add(features, j, 0, 1);
-                                subLabels.add(labels, j, 0, 1);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-                    return createNode(subFeatures, subLabels, subInts);
+        int n = 0;
+        while (feature[n] >= 0) {
+            int branch = branch(n, features[feature[n]]);
+            if (branch >= childCount[n])
+                break;
+            n = firstChild[n] + branch;
+        }
+        labels[0] = answer[n];
+    }
+
+    // Walks the tree reading only the features it splits on, so no row is copied
+    @Override
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        for (int i = start; i < end; i++)
+            out[i] = predict(features, i);
+    }
+
+    // Predicts the label of the specified row of features
+    double predict(Matrix features, int row) {
+        int n = 0;
+        while (feature[n] >= 0) {
+            int branch = branch(n, features.get(row, feature[n]));
+            if (branch >= childCount[n])
+                break;
+            n = firstChild[n] + branch;
+        }
+        return answer[n];
+    }
+
+    // Returns the number of nodes in the trained tree
+    public int nodeCount() {
+        return feature.length;
+    }
+
+    // The layout of node n of the trained tree, numbered breadth-first from the root at 0.
+    // A leaf has a split feature of -1 and no children.
+    public int splitFeature(int n) {
+        return feature[n];
+    }
+
+    public double threshold(int n) {
+        return threshold[n];
+    }
+
+    public double answer(int n) {
+        return answer[n];
+    }
+
+    public int firstChild(int n) {
+        return firstChild[n];
+    }
+
+    public int childCount(int n) {
+        return feature[n] >= 0 ? childCount[n] : 0;
+    }
+
+    @Override
+    public boolean isPredictThreadSafe() {
+        return true;
+    }
+
+    // Same as Node.branch, for node n of the flattened tree
+    private int branch(int n, double value) {
+        double t = threshold[n];
+        if (Double.isNaN(t)) { // nominal
+            int v = (int) value;
+            return v >= 0 && v < childCount[n] ? v : childCount[n];
+        }
+        if (value == Matrix.MISSING || Double.isNaN(value))
+            return childCount[n];
+        return value <= t ? 0 : 1;
+    }
+
+    // Draws the subtree of node n of the flattened tree, one node per line
+    private String print(int n, String prefix, boolean isTail) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(prefix).append(isTail ? "└── " : "├── ").append(feature[n]);
+        if (!Double.isNaN(threshold[n]))
+            builder.append("<=").append(threshold[n]);
+        builder.append(":").append(answer[n]).append('\n');
+        int children = childCount(n);
+        for (int i = 0; i < children; i++)
+            builder.append(print(firstChild[n] + i, prefix + (isTail ? "    " : "│   "), i == children - 1));
+        return builder.toString();
+    }
+
+    // Lays the tree out breadth-first in the primitive arrays predict walks
+    private void flatten(Node root) {
+        List<Node> nodes = new ArrayList<>();
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++)
+            nodes.get(i).subNodesOpt.ifPresent(nodes::addAll);
+
+        int size = nodes.size();
+        feature = new int[size];
+        firstChild = new int[size];
+        childCount = new int[size];
+        threshold = new double[size];
+        answer = new double[size];
+        int next = 1;
+        for (int i = 0; i < size; i++) {
+            Node node = nodes.get(i);
+            answer[i] = node.answer;
+            threshold[i] = node.threshold;
+            feature[i] = node.subNodesOpt.isPresent() ? node.featureIndex : -1;
+            if (feature[i] >= 0) {
+                firstChild[i] = next;
+                childCount[i] = node.subNodesOpt.get().size();
+                next += childCount[i];
+            }
+        }
+    }
+
+    // Grows the subtree for rows[from..to), whose root is at the specified depth. The children's rows are partitioned in place
+    // into consecutive ranges of rows, so the whole build shares one index array. Large
+    // children are forked; every child only touches its own range, and the children are
+    // collected in value order, so the tree is the same however many threads build it.
+    private Node createNode(Build build, int from, int to, boolean[] used, int depth) {
+        Node node = nextNode(build, from, to, used, depth);
+        if (node.featureIndex > -1) {
+            boolean[] subUsed = used;
+            if (node.isNominal()) { // a continuous feature can be split again further down
+                subUsed = used.clone();
+                subUsed[node.featureIndex] = true;
+            }
+            int values = node.subAnswers.length;
+            int[] bounds = partition(build, node, from, to);
+            Node[] subNodes = new Node[values];
+            BuildTask[] tasks = new BuildTask[values];
+            for (int i = 0; i < values; i++) {
+                if (node.entropy[i] != 1.0 && node.entropy[i] != 0.0 && build.parallel(bounds[i + 1] - bounds[i]))
+                    tasks[i] = (BuildTask) new BuildTask(build, bounds[i], bounds[i + 1], subUsed, depth + 1).fork();
+            }
+            for (int i = 0; i < values; i++) {
+                if (node.entropy[i] == 1.0 || node.entropy[i] == 0.0)
+                    subNodes[i] = new Node();
+                else if (tasks[i] == null)
+                    subNodes[i] = createNode(build, bounds[i], bounds[i + 1], subUsed, depth + 1);
+            }
+            for (int i = values - 1; i >= 0; i--) {
+                if (tasks[i] != null)
+                    subNodes[i] = tasks[i].join();
+            }
+            node.setSubNodes(Arrays.asList(subNodes));
+        }
+        return node;
+    }
+
+    // Stably partitions rows[from..to) by the child node sends each row to. Child i gets
+    // [bounds[i], bounds[i + 1]); rows missing the feature end up after bounds[children].
+    private static int[] partition(Build build, Node node, int from, int to) {
+        int children = node.subAnswers.length;
+        int[] bounds = new int[children + 2];
+        for (int k = from; k < to; k++)
+            bounds[node.branch(build.features.get(build.rows[k], node.featureIndex)) + 1]++;
+        bounds[0] = from;
+        for (int i = 1; i < bounds.length; i++)
+            bounds[i] += bounds[i - 1];
+        int[] next = Arrays.copyOf(bounds, bounds.length - 1);
+        for (int k = from; k < to; k++) {
+            int r = build.rows[k];
+            build.scratch[next[node.branch(build.features.get(r, node.featureIndex))]++] = r;
+        }
+        System.arraycopy(build.scratch, from, build.rows, from, to - from);
+        return bounds;
+    }
+
+    // Scores a split on every unused feature over the rows in rows[from..to), then picks the one
+    // with the lowest weighted entropy, taking the first on ties. On a large node the features
+    // are split into groups that are scored as separate tasks. Returns a leaf when there is
+    // nothing left to split on or the node is at the maximum depth.
+    private Node nextNode(Build build, int from, int to, boolean[] used, int depth) {
+        int classes = build.classes;
+        int[] candidates = depth >= build.maxDepth ? new int[0]
+                : randomSubset(build, IntStream.range(0, build.features.cols()).filter(i -> !used[i]).toArray());
+        int[] classCounts = new int[classes];
+        int weight = 0;
+        for (int k = from; k < to; k++) {
+            int r = build.rows[k];
+            int label = (int) build.labels.get(r, 0);
+            weight += build.weight(r);
+            if (label >= 0 && label < classes)
+                classCounts[label] += build.weight(r);
+        }
+        int size = weight;
+        int majority = argMax(classCounts, 0, classes);
+        BitSet members = members(build, candidates, from, to);
+
+        Node[] splits = new Node[candidates.length];
+        if (to > from) {
+            if (candidates.length > 1 && build.parallel(to - from)) {
+                int groups = Math.min(candidates.length, ForkJoinTask.getPool().getParallelism());
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(groups);
+                for (int g = 0; g < groups; g++) {
+                    int first = g * candidates.length / groups;
+                    int last = (g + 1) * candidates.length / groups;
+                    // the groups score the same rows at once, so each sorts into buffers of its own
+                    tasks.add(ForkJoinTask.adapt(() -> evaluate(build, candidates, first, last, splits, from, to, size, majority, members,
+                            new SortBuffers(from, to))));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            } else {
+                evaluate(build, candidates, 0, candidates.length, splits, from, to, size, majority, members, build.buffers);
+            }
+        }
+
+        Node best = null;
+        for (Node node : splits) {
+            if (node != null && (best == null || node.gain < best.gain))
+                best = node;
+        }
+        if (best == null)
+            best = new Node();
+        best.answer = majority;
+        return best;
+    }
+
+    // Picks build.featuresPerSplit of the candidate features at random, keeping them in index order
+    private static int[] randomSubset(Build build, int[] candidates) {
+        int count = build.featuresPerSplit;
+        if (count <= 0 || count >= candidates.length)
+            return candidates;
+        for (int i = 0; i < count; i++) {
+            int j = i + build.random.nextInt(candidates.length - i);
+            int swap = candidates[i];
+            candidates[i] = candidates[j];
+            candidates[j] = swap;
+        }
+        int[] subset = Arrays.copyOf(candidates, count);
+        Arrays.sort(subset);
+        return subset;
+    }
+
+    // Stores the best split on each of candidates[first..last) in splits, or null if the feature
+    // cannot split the rows. size is the total weight of rows[from..to); members holds the same
+    // rows when the node is large enough to walk the shared sort orders, and is null otherwise.
+    private static void evaluate(Build build, int[] candidates, int first, int last, Node[] splits, int from, int to, int size, int majority,
+                                 BitSet members, SortBuffers buffers) {
+        int[][] counts = histograms(build, candidates, first, last, from, to);
+        for (int f = first; f < last; f++) {
+            if (counts[f - first] != null)
+                splits[f] = possibleNode(candidates[f], counts[f - first], build.classes, size, majority);
+            else
+                splits[f] = thresholdNode(build, candidates[f], from, to, size, majority, members, buffers);
+        }
+    }
+
+    // Fills counts[f - first][value * classes + class] for the nominal features among
+    // candidates[first..last) in one pass over rows[from..to). Continuous features are left null.
+    private static int[][] histograms(Build build, int[] candidates, int first, int last, int from, int to) {
+        int classes = build.classes;
+        int[][] counts = new int[last - first][];
+        int[] nominal = new int[last - first];
+        int[] valueCounts = new int[last - first];
+        int n = 0;
+        for (int f = first; f < last; f++) {
+            int values = build.features.valueCount(candidates[f]);
+            if (values > 0) {
+                counts[f - first] = new int[values * classes];
+                nominal[n] = f;
+                valueCounts[n++] = values;
+            }
+        }
+        if (n == 0)
+            return counts;
+        for (int k = from; k < to; k++) {
+            int r = build.rows[k];
+            int label = (int) build.labels.get(r, 0);
+            if (label < 0 || label >= classes)
+                continue;
+            for (int i = 0; i < n; i++) {
+                int value = (int) build.features.get(r, candidates[nominal[i]]);
+                if (value >= 0 && value < valueCounts[i]) // skips missing values
+                    counts[nominal[i] - first][value * classes + label] += build.weight(r);
+            }
+        }
+        return counts;
+    }
+
+    // Finds the threshold on continuous featureIndex with the lowest weighted entropy by sweeping
+    // the node's rows in sorted order, moving one row at a time from the right-hand class counts
+    // to the left. Only thresholds leaving at least minLeaf on each side are tried. Returns null
+    // if there is no such threshold or the best one does not lower the entropy of the rows with a
+    // value by more than minGain.
+    private static Node thresholdNode(Build build, int featureIndex, int from, int to, int size, int majority, BitSet members,
+                                      SortBuffers buffers) {
+        int classes = build.classes;
+        int[] order = buffers.rows;
+        double[] values = buffers.values;
+        int lo = from - buffers.from, hi = to - buffers.from;
+        if (members != null)
+            nodeOrder(build, featureIndex, members, buffers, lo);
+        else
+            sortedRows(build, featureIndex, from, to, buffers);
+        int[] left = new int[classes];
+        int[] right = new int[classes];
+        int end = lo;
+        int rightTotal = 0;
+        for (; end < hi; end++) {
+            int r = order[end];
+            if (values[end] == Matrix.MISSING) // missing values sort last
+                break;
+            int label = (int) build.labels.get(r, 0);
+            if (label >= 0 && label < classes) {
+                right[label] += build.weight(r);
+                rightTotal += build.weight(r);
+            }
+        }
+
+        double unsplit = ((double) rightTotal / size) * entropy(right, 0, classes, rightTotal);
+        int leftTotal = 0;
+        double bestGain = Double.POSITIVE_INFINITY;
+        double threshold = Double.NaN;
+        int[] bestLeft = new int[classes];
+        for (int k = lo; k < end - 1; k++) {
+            int r = order[k];
+            int label = (int) build.labels.get(r, 0);
+            if (label >= 0 && label < classes) {
+                int weight = build.weight(r);
+                left[label] += weight;
+                right[label] -= weight;
+                leftTotal += weight;
+                rightTotal -= weight;
+            }
+            double value = values[k];
+            double next = values[k + 1];
+            if (value < next && leftTotal >= build.minLeaf && rightTotal >= build.minLeaf) {
+                double gain = ((double) leftTotal / size) * entropy(left, 0, classes, leftTotal)
+                        + ((double) rightTotal / size) * entropy(right, 0, classes, rightTotal);
+                if (gain < bestGain) {
+                    bestGain = gain;
+                    double mid = value + (next - value) / 2;
+                    threshold = mid < next ? mid : value;
+                    System.arraycopy(left, 0, bestLeft, 0, classes);
                 }
-            }).collect(Collectors.toList()));
+            }
+        }
+        if (Double.isNaN(threshold) || bestGain > unsplit - build.minGain)
+            return null;
+
+        int[] counts = new int[2 * classes];
+        for (int c = 0; c < classes; c++) {
+            counts[c] = bestLeft[c];
+            counts[classes + c] = left[c] + right[c] - bestLeft[c];
         }
+        Node node = possibleNode(featureIndex, counts, classes, size, majority);
+        node.threshold = threshold;
         return node;
     }
 
-    private Node nextNode(Matrix features, Matrix labels, List<Integer> ints) {
-        return IntStream.range(0, features.cols())
-                .filter(i -> !ints.contains(i))
-                .mapToObj(i -> possibleNode(features, labels, i))
-                .min((n1, n2) -> Double.valueOf(n1.gain).compareTo(n2.gain))
-                .get();
+    // Scores a split on featureIndex from its histogram, counts[value * classes + class].
+    // Values no row takes get an empty leaf that answers with the parent's majority class.
+    private static Node possibleNode(int featureIndex, int[] counts, int classes, int rows, int majority) {
+        int values = counts.length / classes;
+        double[] subAnswers = new double[values];
+        double[] subEntropy = new double[values];
+        double gain = 0;
+        for (int i = 0; i < values; i++) {
+            int offset = i * classes;
+            int total = 0;
+            for (int c = 0; c < classes; c++)
+                total += counts[offset + c];
+            if (total == 0) {
+                subAnswers[i] = majority;
+                continue;
+            }
+            subAnswers[i] = argMax(counts, offset, classes);
+            subEntropy[i] = entropy(counts, offset, classes, total);
+            gain += ((double) total / rows) * subEntropy[i];
+        }
+        return new Node(featureIndex, gain, subAnswers, subEntropy);
+    }
+
+    // Returns the rows of rows[from..to) if the node is large enough that picking its rows out of
+    // the shared sort orders, which takes a pass over every row, is cheaper than sorting them, and
+    // some candidate is continuous. Returns null otherwise.
+    private static BitSet members(Build build, int[] candidates, int from, int to) {
+        int rows = to - from;
+        if ((long) rows * (32 - Integer.numberOfLeadingZeros(rows)) < build.features.rows()
+                || Arrays.stream(candidates).allMatch(f -> build.orders[f] == null))
+            return null;
+        BitSet members = new BitSet(build.features.rows());
+        for (int k = from; k < to; k++)
+            members.set(build.rows[k]);
+        return members;
+    }
+
+    // Fills buffers from lo on with the rows in members, in the shared sort order of feature, and
+    // their values of feature. Rows with no weight in this build are never members, so they are skipped.
+    private static void nodeOrder(Build build, int feature, BitSet members, SortBuffers buffers, int lo) {
+        int n = lo;
+        for (int r : build.orders[feature]) {
+            if (members.get(r)) {
+                buffers.rows[n] = r;
+                buffers.values[n++] = build.features.get(r, feature);
+            }
+        }
+    }
+
+    // Fills buffers with rows[from..to) sorted by their value of feature, and those values
+    private static void sortedRows(Build build, int feature, int from, int to, SortBuffers buffers) {
+        int lo = from - buffers.from, hi = to - buffers.from;
+        System.arraycopy(build.rows, from, buffers.rows, lo, hi - lo);
+        for (int i = lo; i < hi; i++)
+            buffers.values[i] = build.features.get(buffers.rows[i], feature);
+        sort(buffers.rows, buffers.values, lo, hi, buffers.tmpRows, buffers.tmpValues);
     }
 
-    private Node possibleNode(Matrix features, Matrix labels, int featureIndex) {
-        double[] subAnswers = new double[features.valueCount(featureIndex)];
-        double[] subEntropy = new double[features.valueCount(featureIndex)];
-        return new Node(featureIndex, IntStream.range(0, features.valueCount(featureIndex))
-                .mapToDouble(i -> {
-                    double[] answerPercents = new double[labels.valueCount(0)];
-                    int total = (int) IntStream.range(0, features.rows())
-                            .filter(j -> features.get(j, featureIndex) == i)
-                            .peek(j -> answerPercents[(int) labels.get(j, 0)] += 1)
-                            .count();
-                    IntStream.range(0, answerPercents.length).forEach(j -> answerPercents[j] /= total);
-                    subAnswers[i] = IntStream.range(0, answerPercents.length).boxed().max((e1, e2) -> Double.valueOf(answerPercents[e1]).compareTo(answerPercents[e2])).get();
-                    subEntropy[i] = entropy(answerPercents);
-                    return ((double) total / features.rows()) * subEntropy[i];
-                }).sum(), subAnswers, subEntropy);
+    // Index (relative to offset) of the first largest of the length counts starting at offset
+    private static int argMax(int[] counts, int offset, int length) {
+        int best = 0;
+        for (int c = 1; c < length; c++) {
+            if (counts[offset + c] > counts[offset + best])
+                best = c;
+        }
+        return best;
     }
 
-    private double entropy(double[] valueTotals) {
-        return -Arrays.stream(valueTotals).map(value -> value == 0 ? 0 : value * (Math.log(value) / Math.log(2))).sum();
+    private static double entropy(int[] counts, int offset, int length, int total) {
+        double entropy = 0;
+        if (total == 0)
+            return entropy;
+        for (int c = 0; c < length; c++) {
+            if (counts[offset + c] > 0) {
+                double p = (double) counts[offset + c] / total;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+    // Returns, for each continuous feature, the rows of features sorted by that feature (missing
+    // values last), and null for each nominal feature
+    static int[][] sortOrders(Matrix features) {
+        int[][] orders = new int[features.cols()][];
+        for (int f = 0; f < orders.length; f++) {
+            if (features.valueCount(f) == 0)
+                orders[f] = sortedRows(features, f);
+        }
+        return orders;
+    }
+
+    // Returns every row of features sorted by its value of feature
+    private static int[] sortedRows(Matrix features, int feature) {
+        int[] rows = IntStream.range(0, features.rows()).toArray();
+        double[] values = new double[rows.length];
+        for (int r = 0; r < values.length; r++)
+            values[r] = features.get(r, feature);
+        sort(rows, values, 0, rows.length, new int[rows.length], new double[rows.length]);
+        return rows;
+    }
+
+    // Stable merge sort of rows[from..to) by values, where values[i] is the value of rows[i], using
+    // the same range of tmpRows and tmpValues. Missing values are the largest, so they sort last.
+    // Runs of INSERTION_RUN rows are insertion sorted first, so the small nodes deep in a tree are
+    // sorted without any merging.
+    private static void sort(int[] rows, double[] values, int from, int to, int[] tmpRows, double[] tmpValues) {
+        for (int lo = from; lo < to; lo += INSERTION_RUN) {
+            int hi = Math.min(lo + INSERTION_RUN, to);
+            for (int i = lo + 1; i < hi; i++) {
+                int row = rows[i];
+                double value = values[i];
+                int j = i;
+                for (; j > lo && values[j - 1] > value; j--) {
+                    rows[j] = rows[j - 1];
+                    values[j] = values[j - 1];
+                }
+                rows[j] = row;
+                values[j] = value;
+            }
+        }
+        for (int width = INSERTION_RUN; width < to - from; width *= 2) {
+            for (int lo = from; lo < to - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, to);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    if (values[j] < values[i]) {
+                        tmpValues[k] = values[j];
+                        tmpRows[k++] = rows[j++];
+                    } else {
+                        tmpValues[k] = values[i];
+                        tmpRows[k++] = rows[i++];
+                    }
+                }
+                System.arraycopy(rows, i, tmpRows, k, mid - i);
+                System.arraycopy(values, i, tmpValues, k, mid - i);
+                k += mid - i;
+                System.arraycopy(rows, j, tmpRows, k, hi - j);
+                System.arraycopy(values, j, tmpValues, k, hi - j);
+                System.arraycopy(tmpRows, lo, rows, lo, hi - lo);
+                System.arraycopy(tmpValues, lo, values, lo, hi - lo);
+            }
+        }
+    }
+
+    // The training data and row index arrays shared by every node of one build. rows holds the
+    // rows with a non-zero weight, partitioned so each node's rows are consecutive; orders holds
+    // every row of features sorted by each continuous feature (null for nominal features) and is
+    // only ever read, so one set of orders serves every build on the same features.
+    private static class Build {
+        final Matrix features, labels;
+        final int[] weights;
+        final int[] rows, scratch;
+        final SortBuffers buffers;
+        final int[][] orders;
+        final int classes;
+        final int parallelRows;
+        final int featuresPerSplit;
+        final Random random;
+        final int maxDepth, minLeaf;
+        final double minGain;
+
+        // A null weights counts every row once. The stopping rules are taken from tree.
+        Build(DecisionTree tree, Matrix features, Matrix labels, int[] weights, int[][] orders, int parallelRows, int featuresPerSplit, Random random) {
+            this.features = features;
+            this.labels = labels;
+            this.weights = weights;
+            this.rows = IntStream.range(0, features.rows()).filter(r -> weights == null || weights[r] > 0).toArray();
+            this.scratch = new int[rows.length];
+            this.buffers = new SortBuffers(0, rows.length);
+            this.orders = orders;
+            this.classes = labels.valueCount(0);
+            this.parallelRows = parallelRows;
+            this.featuresPerSplit = featuresPerSplit;
+            this.random = random;
+            this.maxDepth = tree.maxDepth;
+            this.minLeaf = tree.minLeaf;
+            this.minGain = tree.minGain;
+        }
+
+        int weight(int row) {
+            return weights == null ? 1 : weights[row];
+        }
+
+        boolean parallel(int rows) {
+            return rows >= parallelRows && ForkJoinTask.inForkJoinPool();
+        }
+    }
+
+    // Arrays a node sorts its rows into, covering positions from..to of rows. Nodes only use the
+    // positions of their own rows, so nodes built at the same time can share one set.
+    private static class SortBuffers {
+        final int from;
+        final int[] rows, tmpRows;
+        final double[] values, tmpValues;
+
+        SortBuffers(int from, int to) {
+            this.from = from;
+            rows = new int[to - from];
+            tmpRows = new int[rows.length];
+            values = new double[rows.length];
+            tmpValues = new double[rows.length];
+        }
+    }
+
+    private class BuildTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final Build build;
+        private final int from, to;
+        private final boolean[] used;
+        private final int depth;
+
+        BuildTask(Build build, int from, int to, boolean[] used, int depth) {
+            this.build = build;
+            this.from = from;
+            this.to = to;
+            this.used = used;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node compute() {
+            return createNode(build, from, to, used, depth);
+        }
     }
 
     private static class Node {
         public int featureIndex = -1;
         public double answer, gain;
+        public double threshold = Double.NaN; // continuous splits send values <= threshold to the first child
         public double[] subAnswers;
         public double[] entropy;
         private Optional<List<Node>> subNodesOpt = Optional.empty();
@@ -96,28 +677,21 @@ public class DecisionTree extends SupervisedLearner {
             this.entropy = entropy;
         }
 
-        public double getAnswer(double[] val) {
-            return subNodesOpt.map(sNodes -> (int) val[featureIndex] >= sNodes.size() ? answer : sNodes.get((int) val[featureIndex]).getAnswer(val)).orElse(answer);
-        }
-
-        @Override
-        public String toString() {
-            return print("", true);
+        public boolean isNominal() {
+            return Double.isNaN(threshold);
         }
 
-        private String print(String prefix, boolean isTail) {
-            StringBuilder builder = new StringBuilder();
-            builder.append(prefix).append(isTail ? "└── " : "├── ").append(featureIndex).append(":").append(answer).append('\n');
-            if (subNodesOpt.isPresent()) {
-                List<Node> subNodes = subNodesOpt.get();
-                for (int i = 0; i < subNodes.size() - 1; i++) {
-                    builder.append(subNodes.get(i).print(prefix + (isTail ? "    " : "│   "), false));
-                }
-                if (subNodes.size() > 0) {
-                    builder.append(subNodes.get(subNodes.size() - 1).print(prefix + (isTail ? "    " : "│   "), true));
-                }
+        // Index of the child a row with the specified value of featureIndex goes to, or the
+        // number of children if the value is missing or unknown
+        public int branch(double value) {
+            int children = subAnswers.length;
+            if (isNominal()) {
+                int v = (int) value;
+                return v >= 0 && v < children ? v : children;
             }
-            return builder.toString();
+            if (value == Matrix.MISSING || Double.isNaN(value))
+                return children;
+            return value <= threshold ? 0 : 1;
         }
 
         public void setSubNodes(List<Node> subNodes) {
@@ -3,22 +3,509 @@ package com.github.davityle.ml;
 import com.github.davityle.ml.writtenbyprofessor.Matrix;
 import com.github.davityle.ml.writtenbyprofessor.SupervisedLearner;
 
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * k-nearest-neighbour learner.
+ *
+ * The distance between two rows is the Euclidean distance over their features, where
+ * a continuous feature contributes its difference scaled by the feature's range in the
+ * training set, a nominal feature contributes 0 if the values match and 1 otherwise, and
+ * a missing value contributes 1. Neighbours at the same distance are ranked by row, so
+ * the neighbours of a query do not depend on how they are searched for.
+ *
+ * Training copies the rows into one contiguous array and, when there are few enough
+ * continuous features, builds a KD-tree over them; otherwise every query scans all rows,
+ * which predictBatch does for blocks of queries at a time. setApproximate trades exactness
+ * for speed by only comparing a query with the rows a RandomProjectionIndex puts near it.
+ */
 public class InstanceBasedLearner extends SupervisedLearner {
 
+    // The KD-tree is not worth it beyond this many continuous features, as it ends up visiting most leaves
+    private static final int KD_MAX_DIMS = 16;
+    private static final int LEAF_SIZE = 16;
+    private static final double MIN_DISTANCE = 1e-12;
+    // Queries and training rows scanned together by predictBatch: each block of rows is read
+    // once per block of queries, while it is still in cache
+    private static final int QUERY_BLOCK = 16;
+    private static final int ROW_BLOCK = 128;
+
+    private final Random random;
+    private int k = 3;
+    private boolean distanceWeighted = false;
+    private int hashTables = 0, hashBits, hashProbes;
 
+    private int rows, cols;
+    private double[] points;   // rows * cols, continuous features divided by their range (null if tiles is used)
+    private double[] targets;
+    private boolean[] nominal;
+    private double[] scale;
+    private int labelValues;
+    // When rows are scanned and every feature is continuous with no missing training values, the
+    // scaled rows are kept here instead of in points, in blocks of ROW_BLOCK rows stored column by
+    // column, so the scan can work on a whole block of rows per feature
+    private double[] tiles;
 
+    // KD-tree over the continuous features, as an implicit binary tree: node n's children are
+    // 2n + 1 and 2n + 2 and it covers order[lo..hi), split at the middle. Null if rows are scanned.
+    private int[] order;
+    private int[] splitDim;
+    private double[] splitValue;
 
+    // Hash index for approximate search; null for exact search
+    private RandomProjectionIndex index;
 
+    public InstanceBasedLearner(Random random) {
+        this.random = random;
+    }
 
+    public void setK(int k) {
+        this.k = k;
+    }
 
+    // Weights each neighbour's vote by the inverse of its squared distance instead of equally
+    public void setDistanceWeighted(boolean distanceWeighted) {
+        this.distanceWeighted = distanceWeighted;
+    }
+
+    // Makes later training build a random-projection hash of tables tables with bits-bit keys, and
+    // prediction only consider the rows in each query's bucket and its probes nearest buckets in
+    // every table. More tables or probes raise recall; more bits make buckets smaller and queries
+    // faster. Queries with no candidate at all fall back to a full scan. 0 tables restores exact
+    // search. The hash only uses continuous features, so data without any is searched exactly.
+    public void setApproximate(int tables, int bits, int probes) {
+        this.hashTables = tables;
+        this.hashBits = bits;
+        this.hashProbes = probes;
+    }
 
     @Override
     public void train(Matrix features, Matrix labels) throws Exception {
+        if (k <= 0)
+            throw new Exception("k must be greater than 0");
+        if (hashTables < 0 || (hashTables > 0 && (hashBits < 1 || hashBits > 30 || hashProbes < 0 || hashProbes > hashBits)))
+            throw new Exception("Expected at least 0 hash tables, 1 to 30 bits and at most as many probes as bits");
+        rows = features.rows();
+        cols = features.cols();
+        labelValues = labels.valueCount(0);
+        nominal = new boolean[cols];
+        scale = new double[cols];
+        int dims = 0;
+        for (int c = 0; c < cols; c++) {
+            nominal[c] = features.valueCount(c) > 0;
+            if (!nominal[c]) {
+                dims++;
+                double range = features.columnMax(c) - features.columnMin(c);
+                scale[c] = range > 0 ? 1 / range : 1;
+            }
+        }
 
+        points = new double[rows * cols];
+        targets = new double[rows];
+        double[] row = new double[cols];
+        boolean plain = dims == cols;
+        for (int r = 0; r < rows; r++) {
+            features.copyRow(r, row);
+            scaleRow(row, points, r * cols);
+            targets[r] = labels.get(r, 0);
+            plain &= !hasMissing(row);
+        }
+
+        order = null;
+        tiles = null;
+        index = null;
+        if (hashTables > 0 && dims > 0 && rows > 0) {
+            index = new RandomProjectionIndex(points, rows, cols, nominal, hashTables, hashBits, hashProbes, random);
+        } else if (dims == 0 || dims > KD_MAX_DIMS || rows <= LEAF_SIZE) {
+            if (plain) {
+                tiles = new double[(rows + ROW_BLOCK - 1) / ROW_BLOCK * ROW_BLOCK * cols];
+                for (int r = 0; r < rows; r++) {
+                    int tile = r / ROW_BLOCK * ROW_BLOCK * cols + r % ROW_BLOCK;
+                    for (int c = 0; c < cols; c++)
+                        tiles[tile + c * ROW_BLOCK] = points[r * cols + c];
+                }
+                points = null;
+            }
+        } else {
+            int size = 1;
+            for (int n = rows; n > LEAF_SIZE; n = (n + 1) / 2)
+                size = size * 2 + 1;
+            order = new int[rows];
+            for (int r = 0; r < rows; r++)
+                order[r] = r;
+            splitDim = new int[size];
+            splitValue = new double[size];
+            build(0, 0, rows);
+        }
     }
 
     @Override
     public void predict(double[] features, double[] labels) throws Exception {
+        Query query = new Query();
+        scaleRow(features, query.values, 0);
+        labels[0] = vote(find(query));
+    }
+
+    @Override
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        double[] row = new double[cols];
+        if (order == null && index == null) {
+            scanBatch(features, start, end, out, row);
+            return;
+        }
+        Query query = new Query();
+        for (int i = start; i < end; i++) {
+            features.copyRow(i, row);
+            scaleRow(row, query.values, 0);
+            out[i] = vote(find(query));
+        }
+    }
+
+    // Returns the training rows nearest to features, nearest first, found the same way predict finds them
+    public int[] nearest(double[] features) {
+        Query query = new Query();
+        scaleRow(features, query.values, 0);
+        Neighbours neighbours = find(query);
+        int[] nearest = new int[neighbours.size];
+        for (int i = neighbours.size - 1; i >= 0; i--) {
+            nearest[i] = neighbours.row[0];
+            neighbours.poll();
+        }
+        return nearest;
+    }
+
+    // Finds the neighbours of the scaled query in query.values, using query's buffers
+    private Neighbours find(Query query) {
+        Neighbours neighbours = query.neighbours[0];
+        neighbours.clear();
+        if (index != null) {
+            RandomProjectionIndex.Candidates candidates = query.candidates;
+            candidates.size = 0;
+            index.margins(query.values, query.margins);
+            index.candidates(query.margins, candidates);
+            candidates.sortUnique();
+            for (int i = 0; i < candidates.size; i++) {
+                int r = candidates.rows[i];
+                neighbours.offer(distance(query.values, 0, r, neighbours.bound()), r);
+            }
+            if (neighbours.size > 0)
+                return neighbours;
+        }
+        if (order == null)
+            scan(query.values, 1, query.neighbours, query.distances);
+        else
+            search(0, 0, rows, query.values, neighbours, query.offsets, 0);
+        return neighbours;
+    }
+
+    // Scans for the neighbours of QUERY_BLOCK rows of features at a time
+    private void scanBatch(Matrix features, int start, int end, double[] out, double[] row) {
+        double[] queries = new double[QUERY_BLOCK * cols];
+        double[] distances = new double[ROW_BLOCK];
+        Neighbours[] neighbours = new Neighbours[QUERY_BLOCK];
+        for (int q = 0; q < QUERY_BLOCK; q++)
+            neighbours[q] = new Neighbours(k);
+        for (int first = start; first < end; first += QUERY_BLOCK) {
+            int count = Math.min(QUERY_BLOCK, end - first);
+            for (int q = 0; q < count; q++) {
+                features.copyRow(first + q, row);
+                scaleRow(row, queries, q * cols);
+                neighbours[q].clear();
+            }
+            scan(queries, count, neighbours, distances);
+            for (int q = 0; q < count; q++)
+                out[first + q] = vote(neighbours[q]);
+        }
+    }
+
+    // Finds the neighbours of the count scaled queries in queries by scanning the training rows in
+    // blocks of ROW_BLOCK, computing the distances from every query to every row of a block before
+    // moving on to the next, so each block is read from memory once per batch of queries. Rows
+    // are offered to each query's heap in row order, so the result is the same as scanning all
+    // rows for one query at a time.
+    private void scan(double[] queries, int count, Neighbours[] neighbours, double[] distances) {
+        for (int block = 0; block < rows; block += ROW_BLOCK) {
+            int blockEnd = Math.min(rows, block + ROW_BLOCK);
+            for (int q = 0; q < count; q++) {
+                Neighbours best = neighbours[q];
+                if (tiles != null) {
+                    blockDistances(queries, q * cols, block, distances);
+                    double bound = best.bound();
+                    for (int r = block; r < blockEnd; r++) {
+                        if (distances[r - block] <= bound) {
+                            best.offer(distances[r - block], r);
+                            bound = best.bound();
+                        }
+                    }
+                } else {
+                    for (int r = block; r < blockEnd; r++)
+                        best.offer(distance(queries, q * cols, r, best.bound()), r);
+                }
+            }
+        }
+    }
+
+    // Squared distances from the query at queries[offset..offset + cols) to the ROW_BLOCK rows of
+    // the tile starting at row block. The inner loop runs down a column of the tile with no
+    // dependency between rows, which the JIT compiles to SIMD instructions; each row still sums
+    // its features in the same order as distance does.
+    private void blockDistances(double[] queries, int offset, int block, double[] out) {
+        Arrays.fill(out, 0);
+        for (int c = 0, t = block * cols; c < cols; c++, t += ROW_BLOCK) {
+            double query = queries[offset + c];
+            if (query == Matrix.MISSING) {
+                for (int i = 0; i < ROW_BLOCK; i++)
+                    out[i] += 1;
+            } else {
+                for (int i = 0; i < ROW_BLOCK; i++) {
+                    double d = query - tiles[t + i];
+                    out[i] += d * d;
+                }
+            }
+        }
+    }
+
+    private static boolean hasMissing(double[] row) {
+        for (double v : row) {
+            if (v == Matrix.MISSING)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isPredictThreadSafe() {
+        return true;
+    }
+
+    // Copies row into dest starting at offset, dividing its continuous features by their range
+    private void scaleRow(double[] row, double[] dest, int offset) {
+        for (int c = 0; c < cols; c++)
+            dest[offset + c] = nominal[c] || row[c] == Matrix.MISSING ? row[c] : row[c] * scale[c];
+    }
+
+    // Squared distance between the query at query[offset..offset + cols) and row. Stops adding
+    // once the sum exceeds bound, as the row cannot be a neighbour then.
+    private double distance(double[] query, int offset, int row, double bound) {
+        double sum = 0;
+        for (int c = 0, p = row * cols; c < cols; c++, p++) {
+            double a = query[offset + c], b = points[p];
+            double d;
+            if (a == Matrix.MISSING || b == Matrix.MISSING)
+                d = 1;
+            else if (nominal[c])
+                d = a == b ? 0 : 1;
+            else
+                d = a - b;
+            sum += d * d;
+            if (sum > bound)
+                break;
+        }
+        return sum;
+    }
+
+    // The majority (or, for distanceWeighted, the weighted majority) label of the neighbours for a
+    // nominal label, or their (weighted) mean for a continuous label
+    private double vote(Neighbours neighbours) {
+        if (labelValues == 0) {
+            double sum = 0, total = 0;
+            for (int i = 0; i < neighbours.size; i++) {
+                double w = weight(neighbours.distance[i]);
+                sum += w * targets[neighbours.row[i]];
+                total += w;
+            }
+            return total > 0 ? sum / total : 0;
+        }
+        double[] votes = new double[labelValues];
+        for (int i = 0; i < neighbours.size; i++) {
+            int label = (int) targets[neighbours.row[i]];
+            if (label >= 0 && label < labelValues)
+                votes[label] += weight(neighbours.distance[i]);
+        }
+        int best = 0;
+        for (int c = 1; c < labelValues; c++) {
+            if (votes[c] > votes[best])
+                best = c;
+        }
+        return best;
+    }
+
+    private double weight(double squaredDistance) {
+        return distanceWeighted ? 1 / Math.max(squaredDistance, MIN_DISTANCE) : 1;
+    }
+
+    // Splits order[lo..hi) at its middle on the continuous feature with the widest spread
+    private void build(int node, int lo, int hi) {
+        splitDim[node] = -1;
+        if (hi - lo <= LEAF_SIZE)
+            return;
+        int dim = -1;
+        double widest = 0;
+        for (int c = 0; c < cols; c++) {
+            if (nominal[c])
+                continue;
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                double v = points[order[i] * cols + c];
+                if (v != Matrix.MISSING) {
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                dim = c;
+            }
+        }
+        if (dim < 0)
+            return; // every continuous feature is constant here
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi, mid, dim);
+        splitDim[node] = dim;
+        splitValue[node] = points[order[mid] * cols + dim];
+        build(2 * node + 1, lo, mid);
+        build(2 * node + 2, mid, hi);
+    }
+
+    // Rearranges order[lo..hi) so order[nth] holds the row that would be there were the range sorted
+    // by feature dim, with no larger value before it and no smaller one after it
+    private void select(int lo, int hi, int nth, int dim) {
+        hi--;
+        while (lo < hi) {
+            double pivot = points[order[(lo + hi) >>> 1] * cols + dim];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (points[order[i] * cols + dim] < pivot)
+                    i++;
+                while (points[order[j] * cols + dim] > pivot)
+                    j--;
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i++] = order[j];
+                    order[j--] = swap;
+                }
+            }
+            if (nth <= j)
+                hi = j;
+            else if (nth >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    // Searches the near child first, then the far child only if the splitting plane is closer than
+    // the current k-th neighbour. offsets holds the (capped) distance from query to the node's
+    // region along each feature it was split on, and boundDistance the sum of their squares, which
+    // is a lower bound on the distance to any row in the node. A missing value contributes 1, so
+    // the offsets are capped at 1 to stay a lower bound for rows missing the feature.
+    private void search(int node, int lo, int hi, double[] query, Neighbours neighbours, double[] offsets, double boundDistance) {
+        int dim = splitDim[node];
+        if (dim < 0) {
+            for (int i = lo; i < hi; i++)
+                neighbours.offer(distance(query, 0, order[i], neighbours.bound()), order[i]);
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double diff = query[dim] == Matrix.MISSING ? 0 : query[dim] - splitValue[node];
+        boolean left = diff <= 0;
+        if (left)
+            search(2 * node + 1, lo, mid, query, neighbours, offsets, boundDistance);
+        else
+            search(2 * node + 2, mid, hi, query, neighbours, offsets, boundDistance);
+
+        double old = offsets[dim];
+        double offset = Math.min(Math.abs(diff), 1);
+        double farDistance = boundDistance - old * old + offset * offset;
+        if (farDistance <= neighbours.bound()) { // equal distances may still hold a lower-numbered row
+            offsets[dim] = offset;
+            if (left)
+                search(2 * node + 2, mid, hi, query, neighbours, offsets, farDistance);
+            else
+                search(2 * node + 1, lo, mid, query, neighbours, offsets, farDistance);
+            offsets[dim] = old;
+        }
+    }
+
+    // Buffers for finding the neighbours of one query at a time
+    private class Query {
+        final double[] values = new double[cols];
+        final double[] offsets = new double[cols];
+        final double[] distances = new double[ROW_BLOCK];
+        final Neighbours[] neighbours = {new Neighbours(k)};
+        final double[] margins = index != null ? new double[index.marginCount()] : null;
+        final RandomProjectionIndex.Candidates candidates = index != null ? new RandomProjectionIndex.Candidates() : null;
+    }
+
+    /**
+     * The k nearest rows seen so far, as a max-heap of primitives ordered by squared distance,
+     * then by row, so the farthest neighbour is at the root.
+     */
+    static final class Neighbours {
+        final double[] distance;
+        final int[] row;
+        int size;
+
+        Neighbours(int k) {
+            distance = new double[k];
+            row = new int[k];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        // A row farther than this cannot be one of the k nearest
+        double bound() {
+            return size < distance.length ? Double.POSITIVE_INFINITY : distance[0];
+        }
+
+        void offer(double d, int r) {
+            if (size < distance.length) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!farther(d, r, distance[parent], row[parent]))
+                        break;
+                    distance[i] = distance[parent];
+                    row[i] = row[parent];
+                    i = parent;
+                }
+                distance[i] = d;
+                row[i] = r;
+            } else if (farther(distance[0], row[0], d, r)) {
+                siftDown(d, r);
+            }
+        }
+
+        // Removes the farthest neighbour
+        void poll() {
+            if (--size > 0)
+                siftDown(distance[size], row[size]);
+        }
+
+        // Puts (d, r) in place of the root and restores the heap below it
+        private void siftDown(double d, int r) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && farther(distance[child + 1], row[child + 1], distance[child], row[child]))
+                    child++;
+                if (!farther(distance[child], row[child], d, r))
+                    break;
+                distance[i] = distance[child];
+                row[i] = row[child];
+                i = child;
+            }
+            distance[i] = d;
+            row[i] = r;
+        }
 
+        private static boolean farther(double d1, int r1, double d2, int r2) {
+            return d1 > d2 || (d1 == d2 && r1 > r2);
+        }
     }
 }
@@ -1,23 +1,30 @@
 package com.github.davityle.ml;
 
 import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import com.github.davityle.ml.writtenbyprofessor.Parallel;
 import com.github.davityle.ml.writtenbyprofessor.SupervisedLearner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BiFunction;
-import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.stream.DoubleStream;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 public class NeuralNet extends SupervisedLearner {
 
 
+    private static final int PREDICT_BLOCK = 64;
+
     private final Random random;
+    private final List<Double> epochThroughput = new ArrayList<>();
+    // layer outputs for predict, one set per thread so predictions can run concurrently
+    private final ThreadLocal<double[][]> predictOutputs = new ThreadLocal<>();
     private Network network;
 
     public NeuralNet(Random random) {
@@ -25,24 +32,40 @@ public class NeuralNet extends SupervisedLearner {
     }
 
     public int train(Matrix features, Matrix labels, Matrix validationSet, Matrix validationLabels) throws Exception {
-        Network best = network;
+        Snapshot best = new Snapshot(network);
         int count = 0, notImproved = 0;
         double bestAccuracy = 0;
-        do {
-            count++;
-            epoch(features, labels, network);
-            features.shuffle(random, labels);
-
-            double accuracy = measureAccuracy(validationSet, validationLabels, null);
-            if (accuracy > bestAccuracy) {
-                best = network.clone();
-                bestAccuracy = accuracy;
-                notImproved = 0;
-            } else {
-                notImproved++;
-            }
-        } while (!network.stoppingConditions.apply(bestAccuracy, notImproved));
-        network = best;
+        Batch batch = new Batch(network, features.cols(), labels.cols(), Math.max(1, network.batchSize), true);
+        // splitting a batch only pays when every thread gets at least one row of it
+        int threads = Parallel.threads(network.threads);
+        ParallelTrainer parallel = threads > 1 && network.batchSize >= threads
+                ? new ParallelTrainer(network, threads, features.cols(), labels.cols()) : null;
+        epochThroughput.clear();
+        try {
+            do {
+                count++;
+                long start = System.nanoTime();
+                if (parallel != null)
+                    parallel.epoch(features, labels);
+                else
+                    epoch(features, labels, network, batch);
+                epochThroughput.add(features.rows() / ((System.nanoTime() - start) / 1e9));
+                features.shuffle(random, labels);
+
+                double accuracy = measureAccuracy(validationSet, validationLabels, null);
+                if (accuracy > bestAccuracy) {
+                    best.save(network);
+                    bestAccuracy = accuracy;
+                    notImproved = 0;
+                } else {
+                    notImproved++;
+                }
+            } while (!network.stoppingConditions.apply(bestAccuracy, notImproved));
+        } finally {
+            if (parallel != null)
+                parallel.close();
+        }
+        best.restore(network);
 
         return count;
     }
@@ -55,84 +78,368 @@ public class NeuralNet extends SupervisedLearner {
 
     @Override
     public void predict(double[] features, double[] labels) throws Exception {
-        labels[0] = deNormalize(forwardPropogate(features, network)).findFirst().getAsDouble();
+        labels[0] = deNormalize(forwardPropogate(features, network)[0]);
+    }
+
+    // Runs the rows through the network PREDICT_BLOCK at a time, so every weight is read
+    // once per block instead of once per row
+    @Override
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        Batch batch = new Batch(network, features.cols(), Math.min(PREDICT_BLOCK, Math.max(1, end - start)));
+        double[] last = batch.outputs[network.depth - 1];
+        int outputs = network.last.nodeCount;
+        for (int blockStart = start; blockStart < end; blockStart += batch.capacity) {
+            batch.size = Math.min(batch.capacity, end - blockStart);
+            for (int b = 0; b < batch.size; b++)
+                features.copyRow(blockStart + b, 0, batch.input, b * batch.inputWidth, batch.inputWidth);
+            forwardPropogate(batch, network);
+            for (int b = 0; b < batch.size; b++)
+                out[blockStart + b] = deNormalize(last[b * outputs]);
+        }
     }
 
-    private double net(double[] nodeWeights, double[] input) {
-        return IntStream.range(0, nodeWeights.length)
-                .mapToDouble(i -> i < input.length ? nodeWeights[i] * input[i] : nodeWeights[i])
-                .sum();
+    @Override
+    public boolean isPredictThreadSafe() {
+        return true;
     }
 
-    private double[] output(double[] input, Layer layer) {
-        return Arrays.stream(layer.nodes)
-                .peek(node -> node.output = 1d / (1d + Math.exp(-net(node.weights, input))))
-                .mapToDouble(node -> node.output)
-                .toArray();
+    // Computes the sigmoid outputs of layer for input. Weights past the end of the input are biases.
+    private static void output(double[] input, Layer layer, double[] output) {
+        double[] weights = layer.weights;
+        int weightCount = layer.weightCount;
+        int inputCount = Math.min(input.length, weightCount);
+        for (int n = 0, base = 0; n < layer.nodeCount; n++, base += weightCount) {
+            double net = 0;
+            int j = 0;
+            for (; j < inputCount; j++)
+                net += weights[base + j] * input[j];
+            for (; j < weightCount; j++)
+                net += weights[base + j];
+            output[n] = 1d / (1d + Math.exp(-net));
+        }
     }
 
     private double[] forwardPropogate(double[] input, Network network) {
-        for (Layer layer : network) {
-            input = output(input, layer);
+        double[][] outputs = predictOutputs.get();
+        if (outputs == null || outputs.length != network.depth) {
+            outputs = new double[network.depth][];
+            predictOutputs.set(outputs);
+        }
+        int l = 0;
+        for (Layer layer = network.first; layer != null; layer = layer.next, l++) {
+            if (outputs[l] == null || outputs[l].length != layer.nodeCount)
+                outputs[l] = new double[layer.nodeCount];
+            output(input, layer, outputs[l]);
+            input = outputs[l];
         }
         return input;
     }
 
-    private void backPropogate(double[] input, double[] expected, Network network) {
-        for (Layer layer : network.reverse()) {
-            for (int i : IntStream.range(0, layer.nodeCount).toArray()) {
-                Layer.Node node = layer.nodes[i];
-                if (layer.next == null) {
-                    node.error = (expected[i] - node.output) * (node.output * (1 - node.output));
-                } else {
-                    node.error = Arrays.stream(layer.next.nodes)
-                            .mapToDouble(nextNode -> nextNode.weights[i] * nextNode.error)
-                            .sum() * node.output * (1 - node.output);
+    // Computes the outputs of every layer for each row of the batch
+    private static void forwardPropogate(Batch batch, Network network) {
+        double[] in = batch.input;
+        int width = batch.inputWidth;
+        int l = 0;
+        for (Layer layer = network.first; layer != null; layer = layer.next, l++) {
+            double[] weights = layer.weights;
+            double[] out = batch.outputs[l];
+            int weightCount = layer.weightCount;
+            int inputCount = Math.min(width, weightCount);
+            // one node at a time so its weights stay in cache for every row of the batch
+            for (int n = 0, base = 0; n < layer.nodeCount; n++, base += weightCount) {
+                for (int b = 0; b < batch.size; b++) {
+                    int inBase = b * width;
+                    double net = 0;
+                    int j = 0;
+                    for (; j < inputCount; j++)
+                        net += weights[base + j] * in[inBase + j];
+                    for (; j < weightCount; j++)
+                        net += weights[base + j];
+                    out[b * layer.nodeCount + n] = 1d / (1d + Math.exp(-net));
+                }
+            }
+            in = out;
+            width = layer.nodeCount;
+        }
+    }
+
+    // Computes every node's error for each row of the batch from the expected outputs,
+    // then adds the gradients of the whole batch to the batch's gradient accumulators
+    private static void backPropogate(Batch batch, Network network) {
+        int l = network.depth - 1;
+        Layer last = network.last;
+        double[] lastOut = batch.outputs[l];
+        double[] lastError = batch.errors[l];
+        for (int i = 0; i < batch.size * last.nodeCount; i++) {
+            double out = lastOut[i];
+            lastError[i] = (batch.expected[i] - out) * (out * (1 - out));
+        }
+        for (Layer layer = last.prev; layer != null; layer = layer.prev) {
+            Layer next = layer.next;
+            double[] out = batch.outputs[l - 1];
+            double[] error = batch.errors[l - 1];
+            double[] nextError = batch.errors[l];
+            for (int b = 0; b < batch.size; b++) {
+                int base = b * layer.nodeCount;
+                Arrays.fill(error, base, base + layer.nodeCount, 0);
+                for (int m = 0, w = 0; m < next.nodeCount; m++, w += next.weightCount) {
+                    double e = nextError[b * next.nodeCount + m];
+                    for (int n = 0; n < layer.nodeCount; n++)
+                        error[base + n] += next.weights[w + n] * e;
                 }
+                for (int n = base; n < base + layer.nodeCount; n++)
+                    error[n] *= out[n] * (1 - out[n]);
             }
+            l--;
         }
 
-        network.stream().peek(layer -> Arrays.stream(layer.nodes).forEach(node -> {
-            double[] in = layer.prev == null ? input : Arrays.stream(layer.prev.nodes).mapToDouble(n -> n.output).toArray();
-            for (int j = 0; j < in.length; j++) {
-                node.derivative[j] += node.error * in[j];
+        double[] in = batch.input;
+        int width = batch.inputWidth;
+        l = 0;
+        for (Layer layer = network.first; layer != null; layer = layer.next, l++) {
+            int inputCount = Math.min(width, layer.weightCount);
+            double[] gradient = batch.gradients[l];
+            double[] error = batch.errors[l];
+            for (int n = 0, base = 0; n < layer.nodeCount; n++, base += layer.weightCount) {
+                for (int b = 0; b < batch.size; b++) {
+                    int inBase = b * width;
+                    double e = error[b * layer.nodeCount + n];
+                    int j = 0;
+                    for (; j < inputCount; j++)
+                        gradient[base + j] += e * in[inBase + j];
+                    for (; j < layer.weightCount; j++)
+                        gradient[base + j] += e;
+                }
             }
-            for (int j = in.length; j < node.derivative.length; j++)
-                node.derivative[in.length] += node.error * 1.0;
-        })).forEach(layer -> Arrays.stream(layer.nodes).forEach(node -> {
-            for (int i = 0; i < node.weights.length; i++) {
-                double delta = network.learningRate * node.derivative[i] + (node.lastDelta[i] * network.momentum);
-                node.weights[i] += delta;
-                node.lastDelta[i] = delta;
-                node.derivative[i] = 0.0;
+            in = batch.outputs[l];
+            width = layer.nodeCount;
+        }
+    }
+
+    // Applies the accumulated gradients, scaled by the specified factor, to the weights and clears them
+    private static void update(Network network, double scale) {
+        for (Layer layer = network.first; layer != null; layer = layer.next) {
+            double[] weights = layer.weights;
+            double[] derivative = layer.derivative;
+            double[] lastDelta = layer.lastDelta;
+            double rate = network.learningRate * scale;
+            for (int i = 0; i < weights.length; i++) {
+                double delta = rate * derivative[i] + (lastDelta[i] * network.momentum);
+                weights[i] += delta;
+                lastDelta[i] = delta;
+                derivative[i] = 0.0;
             }
-        }));
+        }
+    }
+
+    // Trains one pass over the data, updating the weights with the mean gradient of every batchSize rows
+    private void epoch(Matrix features, Matrix labels, Network network, Batch batch) {
+        int rows = features.rows();
+        for (int start = 0; start < rows; start += batch.capacity) {
+            fill(batch, features, labels, start, Math.min(batch.capacity, rows - start));
+            forwardPropogate(batch, network);
+            backPropogate(batch, network);
+            update(network, 1.0 / batch.size);
+        }
+    }
+
+    // Copies size rows, from start on, and their normalized labels into the batch
+    private void fill(Batch batch, Matrix features, Matrix labels, int start, int size) {
+        batch.size = size;
+        int labelCols = labels.cols();
+        for (int b = 0; b < size; b++) {
+            features.copyRow(start + b, 0, batch.input, b * batch.inputWidth, batch.inputWidth);
+            for (int j = 0; j < labelCols; j++)
+                batch.expected[b * labelCols + j] = normalize(labels.get(start + b, j));
+        }
     }
 
-    private void epoch(Matrix features, Matrix labels, Network network) {
-        for (int i = 0; i < features.rows(); i++) {
-            forwardPropogate(features.row(i), network);
-            backPropogate(features.row(i), normalize(labels.row(i)).toArray(), network);
+    /**
+     * Trains with every batch split into one shard of consecutive rows per thread. Each
+     * thread runs its shard through a Batch with gradient accumulators of its own, then
+     * the threads sum the shards' gradients (always in shard order) and apply the update,
+     * each over its own slice of the weights.
+     */
+    private class ParallelTrainer {
+        private final Network network;
+        private final ExecutorService pool;
+        private final Batch[] shards;
+        private final List<Callable<Void>> accumulate = new ArrayList<>();
+        private final List<Callable<Void>> apply = new ArrayList<>();
+        private Matrix features, labels;
+        private int batchStart, batchSize;
+
+        ParallelTrainer(Network network, int threads, int inputWidth, int outputWidth) {
+            this.network = network;
+            int capacity = Math.max(1, network.batchSize);
+            pool = Parallel.newPool(threads);
+            shards = new Batch[threads];
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                shards[t] = new Batch(network, inputWidth, outputWidth, (capacity + threads - 1) / threads, false);
+                accumulate.add(() -> {
+                    accumulate(thread);
+                    return null;
+                });
+                apply.add(() -> {
+                    apply(thread);
+                    return null;
+                });
+            }
+        }
+
+        void epoch(Matrix features, Matrix labels) throws Exception {
+            this.features = features;
+            this.labels = labels;
+            int rows = features.rows();
+            int capacity = Math.max(1, network.batchSize);
+            for (int start = 0; start < rows; start += capacity) {
+                batchStart = start;
+                batchSize = Math.min(capacity, rows - start);
+                Parallel.invokeAll(pool, accumulate);
+                Parallel.invokeAll(pool, apply);
+            }
+        }
+
+        private void accumulate(int thread) {
+            int from = batchSize * thread / shards.length;
+            int to = batchSize * (thread + 1) / shards.length;
+            if (from == to)
+                return;
+            Batch shard = shards[thread];
+            fill(shard, features, labels, batchStart + from, to - from);
+            forwardPropogate(shard, network);
+            backPropogate(shard, network);
+        }
+
+        private void apply(int thread) {
+            double rate = network.learningRate / batchSize;
+            int l = 0;
+            for (Layer layer = network.first; layer != null; layer = layer.next, l++) {
+                int from = layer.weights.length * thread / shards.length;
+                int to = layer.weights.length * (thread + 1) / shards.length;
+                for (int i = from; i < to; i++) {
+                    double derivative = 0;
+                    for (Batch shard : shards) {
+                        derivative += shard.gradients[l][i];
+                        shard.gradients[l][i] = 0;
+                    }
+                    double delta = rate * derivative + (layer.lastDelta[i] * network.momentum);
+                    layer.weights[i] += delta;
+                    layer.lastDelta[i] = delta;
+                }
+            }
+        }
+
+        void close() {
+            pool.shutdownNow();
         }
     }
 
-    private DoubleStream normalize(double[] data) {
-        return Arrays.stream(data).map(d -> (d - network.min) / (network.max - network.min));
+    private double normalize(double d) {
+        return (d - network.min) / (network.max - network.min);
     }
 
-    private DoubleStream deNormalize(double[] data) {
-        return Arrays.stream(data).map(d -> Math.round((network.max - network.min) * d + network.min));
+    private double deNormalize(double d) {
+        return Math.round((network.max - network.min) * d + network.min);
     }
 
     public void setNetwork(Network network) {
         this.network = network;
     }
 
+    // Returns the training throughput, in samples per second, of each epoch of the last call to train
+    public List<Double> getEpochThroughput() {
+        return epochThroughput;
+    }
+
+    /**
+     * The weights of every layer of a network, copied into one array allocated up front,
+     * so keeping the best network seen during training costs a copy of its weights
+     * rather than a clone of every layer.
+     */
+    private static class Snapshot {
+        private final double[] weights;
+        private boolean saved;
+
+        Snapshot(Network network) {
+            int count = 0;
+            for (Layer layer = network.first; layer != null; layer = layer.next)
+                count += layer.weights.length;
+            weights = new double[count];
+        }
+
+        void save(Network network) {
+            int offset = 0;
+            for (Layer layer = network.first; layer != null; layer = layer.next) {
+                System.arraycopy(layer.weights, 0, weights, offset, layer.weights.length);
+                offset += layer.weights.length;
+            }
+            saved = true;
+        }
+
+        // Copies the saved weights back into the network, if any were saved
+        void restore(Network network) {
+            if (!saved)
+                return;
+            int offset = 0;
+            for (Layer layer = network.first; layer != null; layer = layer.next) {
+                System.arraycopy(weights, offset, layer.weights, 0, layer.weights.length);
+                offset += layer.weights.length;
+            }
+        }
+    }
+
+    /**
+     * Inputs, outputs, errors and expected outputs of a batch of rows, stored for
+     * each layer as one batch x nodeCount array. With shared gradients the batch
+     * accumulates straight into the network's derivative arrays.
+     */
+    private static class Batch {
+        final int capacity;
+        final int inputWidth;
+        final double[] input;
+        final double[] expected;
+        final double[][] outputs;
+        final double[][] errors;
+        final double[][] gradients;
+        int size;
+
+        // A batch for prediction only, without errors or gradients
+        Batch(Network network, int inputWidth, int capacity) {
+            this(network, inputWidth, 0, capacity, false, false);
+        }
+
+        Batch(Network network, int inputWidth, int outputWidth, int capacity, boolean sharedGradients) {
+            this(network, inputWidth, outputWidth, capacity, true, sharedGradients);
+        }
+
+        private Batch(Network network, int inputWidth, int outputWidth, int capacity, boolean training, boolean sharedGradients) {
+            this.capacity = capacity;
+            this.inputWidth = inputWidth;
+            input = new double[capacity * inputWidth];
+            expected = new double[capacity * outputWidth];
+            outputs = new double[network.depth][];
+            errors = training ? new double[network.depth][] : null;
+            gradients = training ? new double[network.depth][] : null;
+            int l = 0;
+            for (Layer layer = network.first; layer != null; layer = layer.next, l++) {
+                outputs[l] = new double[capacity * layer.nodeCount];
+                if (training) {
+                    errors[l] = new double[capacity * layer.nodeCount];
+                    gradients[l] = sharedGradients ? layer.derivative : new double[layer.weights.length];
+                }
+            }
+        }
+    }
+
     public static class Network implements Iterable<Layer> {
         public Layer first, last;
         public int depth, nodeCount;
         public double learningRate = .1;
         public double momentum = 0;
+        public int batchSize = 1; // rows per weight update; 1 updates after every row
+        public int threads = 1; // threads each batch is split across, if it has a row for each
         public double max, min;
         public BiFunction<Double, Integer, Boolean> stoppingConditions;
 
@@ -175,6 +482,8 @@ public class NeuralNet extends SupervisedLearner {
             }
             network.momentum = initial.momentum;
             network.learningRate = initial.learningRate;
+            network.batchSize = initial.batchSize;
+            network.threads = initial.threads;
             network.min = initial.min;
             network.max = initial.max;
             network.stoppingConditions = initial.stoppingConditions;
@@ -248,70 +557,53 @@ public class NeuralNet extends SupervisedLearner {
         }
     }
 
+    /**
+     * A fully connected layer of sigmoid nodes. The weights of all nodes are kept in one
+     * row-major nodeCount x weightCount array (one row per node, biases last), and the
+     * gradient and momentum state in arrays of the same shape beside it.
+     */
     public static class Layer {
 
         Layer next, prev;
 
         final int nodeCount;
-        final Node[] nodes;
+        final int weightCount;
+        final double[] weights;
+        final double[] derivative;
+        final double[] lastDelta;
 
         public Layer(int nodeCount, int weightCount, Random random) {
-            this(nodeCount, weightCount, random, Node::new);
+            this(nodeCount, weightCount, randomWeights(nodeCount * weightCount, random));
+        }
+
+        public Layer(int nodeCount, int weightCount, double[] weights) {
+            this(nodeCount, weightCount, weights, new double[weights.length], new double[weights.length]);
         }
 
-        public Layer(int nodeCount, int weightCount, Random random, Function<double[], Node> supplier) {
+        private Layer(int nodeCount, int weightCount, double[] weights, double[] derivative, double[] lastDelta) {
+            if (weights.length != nodeCount * weightCount)
+                throw new IllegalArgumentException("Expected " + nodeCount * weightCount + " weights");
             this.nodeCount = nodeCount;
-            this.nodes = new Node[nodeCount];
-            for (int i = 0; i < nodeCount; i++) {
-                double[] weights = new double[weightCount];
-                for (int j = 0; j < weights.length; j++) {
-                    weights[j] = random.nextDouble();
-                }
-                nodes[i] = supplier.apply(weights);
-            }
+            this.weightCount = weightCount;
+            this.weights = weights;
+            this.derivative = derivative;
+            this.lastDelta = lastDelta;
         }
 
-        public Layer(Node[] nodes) {
-            this.nodeCount = nodes.length;
-            this.nodes = nodes;
+        private static double[] randomWeights(int count, Random random) {
+            double[] weights = new double[count];
+            for (int i = 0; i < count; i++) {
+                weights[i] = random.nextDouble();
+            }
+            return weights;
         }
 
         @Override
         public Layer clone() {
-            return new Layer(Arrays.stream(nodes).map(Node::clone).toArray(Node[]::new));
-        }
-
-        public static class Node {
-            private double[] derivative;
-            private double[] lastDelta;
-            private double output;
-
-            final double[] weights;
-            double error;
-
-            public Node(double[] weights) {
-                this(weights, new double[weights.length], new double[weights.length]);
-            }
-
-            public Node(double[] weights, double[] derivative, double[] lastDelta) {
-                this.weights = weights;
-                this.derivative = derivative;
-                this.lastDelta = lastDelta;
-            }
-
-            @Override
-            public Node clone() {
-                Node n = new Node(
-                        Arrays.copyOf(weights, weights.length),
-                        Arrays.copyOf(derivative, derivative.length),
-                        Arrays.copyOf(lastDelta, lastDelta.length)
-                );
-                n.output = output;
-                n.error = error;
-
-                return n;
-            }
+            return new Layer(nodeCount, weightCount,
+                    Arrays.copyOf(weights, weights.length),
+                    Arrays.copyOf(derivative, derivative.length),
+                    Arrays.copyOf(lastDelta, lastDelta.length));
         }
     }
 }
-
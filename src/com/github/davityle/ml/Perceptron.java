@@ -1,44 +1,56 @@
 package com.github.davityle.ml;
 
 import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import com.github.davityle.ml.writtenbyprofessor.Parallel;
 import com.github.davityle.ml.writtenbyprofessor.SupervisedLearner;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import java.util.function.Function;
+import java.util.concurrent.Callable;
 
 public class Perceptron extends SupervisedLearner {
 
     private static final double LEARNING_RATE = .1, THRESHOLD = 0;
-    private double[][] weights;
-    private int perceptronCount;
+    private static final int PREDICT_BLOCK = 64;
+    // Epochs without a change in accuracy before training stops, and a cap on the total
+    private static final int STALL_EPOCHS = 5, MAX_EPOCHS = 1000;
+    // perceptronCount rows of cols weights, one after another
+    private double[] weights;
+    private int perceptronCount, cols;
+    private int threads = 1;
+    private boolean averaged;
     private final Random random;
 
     public Perceptron(Random random) {
         this.random = random;
     }
 
-    private double acc(Matrix inputs, Matrix labels) {
-        try {
-            return measureAccuracy(inputs, labels, null);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    // Sets the number of threads multiclass training uses. With 1 (the default) every unit is
+    // trained together in a single pass over the rows; with more, each class's unit is trained
+    // separately on a thread pool, in its own shuffled order seeded up front. Inside a task that
+    // already shares the cores, such as a parallel cross-validation fold, the units still train
+    // separately but one at a time.
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
 
-        return 0;
+    // Makes training keep, for every weight, its average over all the rows presented rather than
+    // its final value, which is much less sensitive to the last few updates. Averaged training
+    // always goes through the sparse engine (a Matrix is converted to SparseRows first), and
+    // trains every unit together on the calling thread.
+    public void setAveraged(boolean averaged) {
+        this.averaged = averaged;
     }
 
+    // Trains every unit together until the training accuracy seen during an epoch has
+    // stayed within 1% of the previous epoch's count times, shuffling the rows between epochs
     private int trn(Matrix inputs, Matrix labels, int count) {
         int epochCount = 0;
-        double currentAccuracy = acc(inputs, labels);
-        double m = currentAccuracy;
-        while (count > 0) {
-            for (int i = 0; i < weights.length; i++) {
-                final double finalI = i;
-                weights[i] = epoch(inputs, weights[i], weights.length != 1 ? row -> (labels.get(row, 0) == finalI ? 1d : 0d) : row -> labels.get(row, 0));
-            }
-            double newAcc = acc(inputs, labels);
+        double[] row = new double[inputs.cols()];
+        double currentAccuracy = 0;
+        while (count > 0 && epochCount < MAX_EPOCHS) {
+            double newAcc = epoch(inputs, labels, row) / (double) inputs.rows();
             double diff = currentAccuracy - newAcc;
             if (diff >= -.01 && diff <= 0.01) {
                 count--;
@@ -46,41 +58,176 @@ public class Perceptron extends SupervisedLearner {
             inputs.shuffle(random, labels);
             epochCount++;
             currentAccuracy = newAcc;
-            if (currentAccuracy > m) {
-                m = currentAccuracy;
+        }
+        return epochCount;
+    }
+
+    // Trains each unit on its own, spread over a pool of threads. The rows are visited through a
+    // per-unit order rather than shuffled in place, so the units never share mutable state.
+    private void trnUnits(Matrix inputs, Matrix labels, int count) throws Exception {
+        List<Callable<Integer>> tasks = new ArrayList<>(perceptronCount);
+        for (int u = 0; u < perceptronCount; u++) {
+            int unit = u;
+            long seed = random.nextLong();
+            tasks.add(() -> trnUnit(inputs, labels, unit, count, new Random(seed)));
+        }
+
+        Parallel.invokeAll(tasks, Parallel.threads(threads));
+    }
+
+    // Trains a single unit with the same stopping rule as trn, returning the number of epochs
+    private int trnUnit(Matrix inputs, Matrix labels, int unit, int count, Random random) {
+        int epochCount = 0;
+        double[] row = new double[inputs.cols()];
+        int[] order = new int[inputs.rows()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        double currentAccuracy = 0;
+        while (count > 0 && epochCount < MAX_EPOCHS) {
+            int correct = 0;
+            for (int r : order) {
+                inputs.copyRow(r, row);
+                zeroMissing(row, 0, row.length);
+                if (calculate(row, (int) labels.get(r, 0) == unit ? 1 : 0, unit * cols))
+                    correct++;
+            }
+            double newAcc = correct / (double) order.length;
+            double diff = currentAccuracy - newAcc;
+            if (diff >= -.01 && diff <= 0.01) {
+                count--;
             }
+            for (int n = order.length; n > 1; n--) {
+                int i = random.nextInt(n);
+                int t = order[n - 1];
+                order[n - 1] = order[i];
+                order[i] = t;
+            }
+            epochCount++;
+            currentAccuracy = newAcc;
         }
         return epochCount;
     }
 
-    private double[] epoch(Matrix inputs, double[] weights, Function<Integer, Double> target) {
-        for (int i = 0; i < inputs.rows(); i++) {
-            weights = calculate(inputs.row(i), target.apply(i), weights);
+    // Presents every row once to all of the units, loading each row into the row buffer a
+    // single time. Returns the number of rows that every unit already got right.
+    private int epoch(Matrix inputs, Matrix labels, double[] row) {
+        int cols = row.length;
+        int correct = 0;
+        for (int r = 0; r < inputs.rows(); r++) {
+            inputs.copyRow(r, row);
+            zeroMissing(row, 0, row.length);
+            int label = (int) labels.get(r, 0);
+            boolean right = true;
+            for (int u = 0, offset = 0; u < perceptronCount; u++, offset += cols) {
+                int target = perceptronCount == 1 ? label : (label == u ? 1 : 0);
+                if (!calculate(row, target, offset))
+                    right = false;
+            }
+            if (right)
+                correct++;
+        }
+        return correct;
+    }
+
+    // Updates the unit whose weights start at offset towards target, returning false if it
+    // had to change
+    private boolean calculate(double[] input, int target, int offset) {
+        int diff = target - neuron(input, offset);
+        if (diff == 0)
+            return true;
+        double step = diff * LEARNING_RATE;
+        for (int i = 0; i < input.length; i++) {
+            weights[offset + i] += step * input[i];
         }
-        return weights;
+        return false;
     }
 
-    private double[] calculate(double[] input, double target, double[] weights) {
-        double result = neuron(input, weights);
-        double diff = target - result;
-        if (result != diff) {
-            for (int i = 0; i < input.length; i++) {
-                weights[i] = weights[i] + diff * LEARNING_RATE * input[i];
+    // Trains every unit together on sparse rows with the same stopping rule as trn, visiting
+    // the rows in a shuffled order. Only the nonzero values of a row are read or updated.
+    //
+    // When averaging, the average of each weight over every row presented is kept lazily: an
+    // update of step made after c earlier rows also adds c * step to sums, so after n rows the
+    // average weight is weights - sums / n, and an update costs nothing for the zero values.
+    private int trnSparse(SparseRows inputs, int[] labels, int count) {
+        int rows = inputs.rows();
+        int[] order = new int[rows];
+        for (int i = 0; i < rows; i++)
+            order[i] = i;
+        double[] sums = averaged ? new double[weights.length] : null;
+        long presented = 0;
+        int epochCount = 0;
+        double currentAccuracy = 0;
+        while (count > 0 && epochCount < MAX_EPOCHS) {
+            int correct = 0;
+            for (int r : order) {
+                boolean right = true;
+                for (int u = 0, offset = 0; u < perceptronCount; u++, offset += cols) {
+                    int target = perceptronCount == 1 ? labels[r] : (labels[r] == u ? 1 : 0);
+                    int diff = target - (inputs.dot(r, weights, offset) >= THRESHOLD ? 1 : 0);
+                    if (diff != 0) {
+                        double step = diff * LEARNING_RATE;
+                        inputs.addTo(r, step, weights, offset);
+                        if (sums != null)
+                            inputs.addTo(r, presented * step, sums, offset);
+                        right = false;
+                    }
+                }
+                if (right)
+                    correct++;
+                presented++;
             }
+            double newAcc = correct / (double) rows;
+            double diff = currentAccuracy - newAcc;
+            if (diff >= -.01 && diff <= 0.01) {
+                count--;
+            }
+            for (int n = rows; n > 1; n--) {
+                int i = random.nextInt(n);
+                int t = order[n - 1];
+                order[n - 1] = order[i];
+                order[i] = t;
+            }
+            epochCount++;
+            currentAccuracy = newAcc;
+        }
+        if (sums != null) {
+            for (int i = 0; i < weights.length; i++)
+                weights[i] -= sums[i] / presented;
+        }
+        return epochCount;
+    }
+
+    // Sets the missing values of row[from..to) to 0, so they add nothing to a unit's sum and leave
+    // its weights alone, the same as SparseRows.of dropping them
+    private static void zeroMissing(double[] row, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (row[i] == Matrix.MISSING)
+                row[i] = 0;
         }
-        return weights;
     }
 
-    private double multZip(double[] input, double[] weights) {
+    // Returns row, or a copy of it with its missing values set to 0 if it has any
+    private static double[] withoutMissing(double[] row) {
+        for (double v : row) {
+            if (v == Matrix.MISSING) {
+                row = row.clone();
+                zeroMissing(row, 0, row.length);
+                break;
+            }
+        }
+        return row;
+    }
+
+    private double multZip(double[] input, int offset) {
         double sum = 0;
         for (int i = 0; i < input.length; i++) {
-            sum += (input[i] * weights[i]);
+            sum += (input[i] * weights[offset + i]);
         }
         return sum;
     }
 
-    private int neuron(double[] input, double[] weights) {
-        return multZip(input, weights) >= THRESHOLD ? 1 : 0;
+    private int neuron(double[] input, int offset) {
+        return multZip(input, offset) >= THRESHOLD ? 1 : 0;
     }
 
 
@@ -88,25 +235,126 @@ public class Perceptron extends SupervisedLearner {
     public void train(Matrix features, Matrix labels) throws Exception {
         int resultsLength = labels.getResultsLength(0);
         perceptronCount = resultsLength <= 2 ? 1 : resultsLength;
-        weights = new double[perceptronCount][features.cols()];
+        cols = features.cols();
+        weights = new double[perceptronCount * cols];
+        if (averaged) {
+            int[] classes = new int[labels.rows()];
+            for (int r = 0; r < classes.length; r++)
+                classes[r] = (int) labels.get(r, 0);
+            trnSparse(SparseRows.of(features), classes, STALL_EPOCHS);
+        } else if (perceptronCount > 1 && threads > 1)
+            trnUnits(features, labels, STALL_EPOCHS);
+        else
+            trn(features, labels, STALL_EPOCHS);
     }
 
+    /**
+     * Trains on sparse rows whose labels are class numbers from 0 to classes - 1. Each epoch
+     * costs time in proportion to the nonzero values rather than to rows * cols, though the
+     * weights are still held densely, one row of cols per unit.
+     */
+    public void train(SparseRows features, int[] labels, int classes) throws Exception {
+        if (features.rows() != labels.length)
+            throw new Exception("Expected the features and labels to have the same number of rows");
+        for (int label : labels) {
+            if (label < 0 || label >= Math.max(classes, 2))
+                throw new Exception("The label is out of range");
+        }
+        perceptronCount = classes <= 2 ? 1 : classes;
+        cols = features.cols();
+        weights = new double[perceptronCount * cols];
+        trnSparse(features, labels, STALL_EPOCHS);
+    }
+
+    // Predicts the class of a row of sparse features, the same way predict does for a dense row
+    public int predict(SparseRows features, int row) {
+        if (perceptronCount == 1)
+            return features.dot(row, weights, 0) >= THRESHOLD ? 1 : 0;
+        int best = 0;
+        double bestSum = features.dot(row, weights, 0);
+        for (int i = 1; i < perceptronCount; i++) {
+            double sum = features.dot(row, weights, i * cols);
+            if (sum > bestSum) {
+                best = i;
+                bestSum = sum;
+            }
+        }
+        return best;
+    }
+
+    // With several units, predicts the class whose unit has the highest activation (the first
+    // on a tie), keeping only the best so far
     @Override
     public void predict(double[] features, double[] labels) throws Exception {
+        features = withoutMissing(features);
         if (perceptronCount == 1) {
-            labels[0] = neuron(features, weights[0]);
+            labels[0] = neuron(features, 0);
         } else {
-            List<Integer> positives = new ArrayList<>(perceptronCount);
-            for (int i = 0; i < perceptronCount; i++) {
-                int result = neuron(features, weights[i]);
-                if (result > 0)
-                    positives.add(Integer.valueOf(i));
+            int best = 0;
+            double bestSum = multZip(features, 0);
+            for (int i = 1; i < perceptronCount; i++) {
+                double sum = multZip(features, i * cols);
+                if (sum > bestSum) {
+                    best = i;
+                    bestSum = sum;
+                }
             }
+            labels[0] = best;
+        }
+    }
 
-            labels[0] = positives.stream()
-                    .sorted((i1, i2) -> (int) (multZip(features, weights[i1]) - multZip(features, weights[i2])))
-                    .findFirst()
-                    .orElseGet(() -> 0);
+    // Scores a block of rows at a time as a matrix product. The block's rows are copied into one
+    // contiguous buffer, then each unit is scored against four rows at once, so every weight
+    // loaded feeds four independent sums instead of one long chain of additions.
+    @Override
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        int width = Math.min(features.cols(), cols);
+        double[] block = new double[PREDICT_BLOCK * width];
+        double[] sums = new double[PREDICT_BLOCK];
+        double[] bestSums = new double[PREDICT_BLOCK];
+        int[] best = new int[PREDICT_BLOCK];
+        for (int blockStart = start; blockStart < end; blockStart += PREDICT_BLOCK) {
+            int size = Math.min(PREDICT_BLOCK, end - blockStart);
+            for (int b = 0; b < size; b++)
+                features.copyRow(blockStart + b, 0, block, b * width, width);
+            zeroMissing(block, 0, size * width);
+            for (int u = 0, offset = 0; u < perceptronCount; u++, offset += cols) {
+                int b = 0;
+                for (; b + 4 <= size; b += 4) {
+                    int r0 = b * width, r1 = r0 + width, r2 = r1 + width, r3 = r2 + width;
+                    double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                    for (int c = 0; c < width; c++) {
+                        double wc = weights[offset + c];
+                        s0 += block[r0 + c] * wc;
+                        s1 += block[r1 + c] * wc;
+                        s2 += block[r2 + c] * wc;
+                        s3 += block[r3 + c] * wc;
+                    }
+                    sums[b] = s0;
+                    sums[b + 1] = s1;
+                    sums[b + 2] = s2;
+                    sums[b + 3] = s3;
+                }
+                for (; b < size; b++) {
+                    double sum = 0;
+                    for (int c = 0, r = b * width; c < width; c++)
+                        sum += block[r + c] * weights[offset + c];
+                    sums[b] = sum;
+                }
+                for (b = 0; b < size; b++) {
+                    if (u == 0 || sums[b] > bestSums[b]) {
+                        bestSums[b] = sums[b];
+                        best[b] = u;
+                    }
+                }
+            }
+            for (int b = 0; b < size; b++)
+                out[blockStart + b] = perceptronCount == 1 ? (bestSums[b] >= THRESHOLD ? 1 : 0) : best[b];
         }
     }
+
+    @Override
+    public boolean isPredictThreadSafe() {
+        return true;
+    }
 }
@@ -0,0 +1,123 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import com.github.davityle.ml.writtenbyprofessor.Parallel;
+import com.github.davityle.ml.writtenbyprofessor.SupervisedLearner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * An ensemble of DecisionTrees that predicts the label most of its trees vote for.
+ *
+ * Each tree is trained on a bootstrap sample of the rows, expressed as the number of
+ * times each row was drawn rather than as a copied Matrix. Every node of every tree
+ * only considers a random subset of the features. The features are sorted once and the
+ * sort orders shared by every tree. The trees are trained on a thread pool, each with
+ * a seed drawn up front from the forest's Random. The trees only share read-only data,
+ * so each tree being grown holds little more than its own row index arrays.
+ */
+public class RandomForest extends SupervisedLearner {
+
+    // Rows whose votes are counted together, tree by tree, in predictBatch
+    private static final int PREDICT_BLOCK = 256;
+
+    private final Random random;
+    private int treeCount = 50;
+    private int featuresPerSplit = 0;
+    private int threads = 0;
+    private DecisionTree[] trees;
+    private int classes;
+
+    public RandomForest(Random random) {
+        this.random = random;
+    }
+
+    public void setTreeCount(int treeCount) {
+        this.treeCount = treeCount;
+    }
+
+    // Sets the number of features each node picks its split from; 0 (the default) uses the square root of the feature count
+    public void setFeaturesPerSplit(int featuresPerSplit) {
+        this.featuresPerSplit = featuresPerSplit;
+    }
+
+    // Sets the number of trees trained at once; 0 (the default) uses every core, subject to
+    // Parallel.threads
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    @Override
+    public void train(Matrix features, Matrix labels) throws Exception {
+        if (labels.valueCount(0) == 0)
+            throw new Exception("RandomForest only supports nominal labels");
+        if (treeCount <= 0)
+            throw new Exception("Number of trees must be greater than 0");
+        classes = labels.valueCount(0);
+        int rows = features.rows();
+        int perSplit = featuresPerSplit > 0 ? featuresPerSplit : Math.max(1, (int) Math.round(Math.sqrt(features.cols())));
+        int[][] orders = DecisionTree.sortOrders(features);
+
+        List<Callable<DecisionTree>> tasks = new ArrayList<>(treeCount);
+        for (int t = 0; t < treeCount; t++) {
+            long seed = random.nextLong();
+            tasks.add(() -> {
+                Random rand = new Random(seed);
+                int[] weights = new int[rows];
+                for (int i = 0; i < rows; i++)
+                    weights[rand.nextInt(rows)]++;
+                DecisionTree tree = new DecisionTree();
+                tree.train(features, labels, weights, orders, perSplit, rand);
+                return tree;
+            });
+        }
+
+        trees = Parallel.invokeAll(tasks, Parallel.threads(threads)).toArray(new DecisionTree[0]);
+    }
+
+    @Override
+    public void predict(double[] features, double[] labels) throws Exception {
+        int[] votes = new int[classes];
+        double[] answer = new double[1];
+        for (DecisionTree tree : trees) {
+            tree.predict(features, answer);
+            votes[(int) answer[0]]++;
+        }
+        labels[0] = mostVotes(votes, 0);
+    }
+
+    // Counts the votes of a block of rows one tree at a time, so each tree's arrays stay in cache for the whole block
+    @Override
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        int[] votes = new int[PREDICT_BLOCK * classes];
+        for (int block = start; block < end; block += PREDICT_BLOCK) {
+            int blockEnd = Math.min(end, block + PREDICT_BLOCK);
+            Arrays.fill(votes, 0);
+            for (DecisionTree tree : trees) {
+                for (int i = block; i < blockEnd; i++)
+                    votes[(i - block) * classes + (int) tree.predict(features, i)]++;
+            }
+            for (int i = block; i < blockEnd; i++)
+                out[i] = mostVotes(votes, (i - block) * classes);
+        }
+    }
+
+    @Override
+    public boolean isPredictThreadSafe() {
+        return true;
+    }
+
+    // The first class with the most votes among the classes counts starting at offset
+    private int mostVotes(int[] votes, int offset) {
+        int best = 0;
+        for (int c = 1; c < classes; c++) {
+            if (votes[offset + c] > votes[offset + best])
+                best = c;
+        }
+        return best;
+    }
+}
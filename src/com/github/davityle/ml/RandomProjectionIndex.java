@@ -0,0 +1,170 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random-projection locality-sensitive hash over the continuous features of a set of rows,
+ * used by InstanceBasedLearner for approximate neighbour search.
+ *
+ * Each of the tables hashes a row to a key of bits bits, bit j being set if the row lies on
+ * the positive side of a random hyperplane. The hyperplanes have Gaussian normals and each
+ * passes through a randomly chosen row, so they cut through the data. Rows that are close
+ * tend to share a key in at least one table. A query looks up its own bucket in every table,
+ * plus the probes buckets that differ from it in the bits whose hyperplanes pass closest to
+ * the query.
+ */
+class RandomProjectionIndex {
+
+    private final int tables, bits, probes, cols;
+    private final double[] centre;   // mean of each continuous feature; missing values are taken to be here
+    private final double[] planes;   // tables * bits * cols normals, 0 for nominal features
+    private final double[] offsets;  // tables * bits, the projection of the row each hyperplane passes through
+    private final int[][] keys;      // per table, the keys of all rows in ascending order
+    private final int[][] rows;      // per table, the row each entry of keys belongs to
+
+    RandomProjectionIndex(double[] points, int rowCount, int cols, boolean[] nominal, int tables, int bits, int probes, Random random) {
+        this.tables = tables;
+        this.bits = bits;
+        this.probes = probes;
+        this.cols = cols;
+
+        centre = new double[cols];
+        for (int c = 0; c < cols; c++) {
+            if (nominal[c])
+                continue;
+            double sum = 0;
+            int count = 0;
+            for (int r = 0; r < rowCount; r++) {
+                double v = points[r * cols + c];
+                if (v != Matrix.MISSING) {
+                    sum += v;
+                    count++;
+                }
+            }
+            centre[c] = count > 0 ? sum / count : 0;
+        }
+
+        planes = new double[tables * bits * cols];
+        offsets = new double[tables * bits];
+        double[] row = new double[cols];
+        for (int h = 0; h < tables * bits; h++) {
+            for (int c = 0; c < cols; c++)
+                planes[h * cols + c] = nominal[c] ? 0 : random.nextGaussian();
+            System.arraycopy(points, random.nextInt(rowCount) * cols, row, 0, cols);
+            offsets[h] = project(row, h);
+        }
+
+        keys = new int[tables][];
+        rows = new int[tables][];
+        long[] entries = new long[rowCount];
+        double[] margins = new double[tables * bits];
+        int[] rowKeys = new int[rowCount * tables];
+        for (int r = 0; r < rowCount; r++) {
+            System.arraycopy(points, r * cols, row, 0, cols);
+            margins(row, margins);
+            for (int t = 0; t < tables; t++)
+                rowKeys[r * tables + t] = key(margins, t);
+        }
+        for (int t = 0; t < tables; t++) {
+            for (int r = 0; r < rowCount; r++)
+                entries[r] = ((long) rowKeys[r * tables + t] << 32) | r;
+            Arrays.sort(entries);
+            keys[t] = new int[rowCount];
+            rows[t] = new int[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                keys[t][i] = (int) (entries[i] >>> 32);
+                rows[t][i] = (int) entries[i];
+            }
+        }
+    }
+
+    // Fills margins with the signed distance (in projected units) of query from every hyperplane
+    void margins(double[] query, double[] margins) {
+        for (int h = 0; h < tables * bits; h++)
+            margins[h] = project(query, h) - offsets[h];
+    }
+
+    // Adds the rows in the buckets probed for a query with the specified margins to candidates.
+    // A row may be added more than once.
+    void candidates(double[] margins, Candidates candidates) {
+        for (int t = 0; t < tables; t++) {
+            int key = key(margins, t);
+            addBucket(t, key, candidates);
+            long flipped = 0; // bits already probed
+            for (int p = 0; p < probes; p++) {
+                int closest = -1;
+                for (int j = 0; j < bits; j++) {
+                    if ((flipped & (1L << j)) == 0 && (closest < 0
+                            || Math.abs(margins[t * bits + j]) < Math.abs(margins[t * bits + closest])))
+                        closest = j;
+                }
+                flipped |= 1L << closest;
+                addBucket(t, key ^ (1 << closest), candidates);
+            }
+        }
+    }
+
+    private void addBucket(int table, int key, Candidates candidates) {
+        int[] tableKeys = keys[table];
+        int lo = 0, hi = tableKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tableKeys[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i = lo; i < tableKeys.length && tableKeys[i] == key; i++)
+            candidates.add(rows[table][i]);
+    }
+
+    private int key(double[] margins, int table) {
+        int key = 0;
+        for (int j = 0; j < bits; j++) {
+            if (margins[table * bits + j] > 0)
+                key |= 1 << j;
+        }
+        return key;
+    }
+
+    private double project(double[] row, int plane) {
+        double sum = 0;
+        for (int c = 0, p = plane * cols; c < cols; c++, p++) {
+            if (row[c] != Matrix.MISSING)
+                sum += planes[p] * (row[c] - centre[c]);
+        }
+        return sum;
+    }
+
+    int marginCount() {
+        return tables * bits;
+    }
+
+    /**
+     * A growable list of candidate rows.
+     */
+    static final class Candidates {
+        int[] rows = new int[64];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length)
+                rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+        }
+
+        // Sorts the rows and drops duplicates
+        void sortUnique() {
+            Arrays.sort(rows, 0, size);
+            int unique = 0;
+            for (int i = 0; i < size; i++) {
+                if (unique == 0 || rows[i] != rows[unique - 1])
+                    rows[unique++] = rows[i];
+            }
+            size = unique;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+/**
+ * Rows of continuous features in which most values are 0, stored as only their nonzero
+ * values: the column indices and values of every row one after another in two arrays,
+ * with the position at which each row starts in a third (compressed sparse rows).
+ */
+public class SparseRows {
+
+    private final int cols;
+    private final int[] start;  // rows() + 1 positions; row r's entries are start[r] to start[r + 1] - 1
+    private final int[] index;
+    private final double[] value;
+
+    // Packs rows given as parallel arrays of column indices and values
+    public SparseRows(int cols, int[][] indices, double[][] values) {
+        if (indices.length != values.length)
+            throw new IllegalArgumentException("Expected as many value arrays as index arrays");
+        this.cols = cols;
+        start = new int[indices.length + 1];
+        for (int r = 0; r < indices.length; r++) {
+            if (indices[r].length != values[r].length)
+                throw new IllegalArgumentException("Row " + r + " has " + indices[r].length + " indices but " + values[r].length + " values");
+            start[r + 1] = start[r] + indices[r].length;
+        }
+        index = new int[start[indices.length]];
+        value = new double[index.length];
+        for (int r = 0; r < indices.length; r++) {
+            for (int k = 0; k < indices[r].length; k++) {
+                int c = indices[r][k];
+                if (c < 0 || c >= cols)
+                    throw new IndexOutOfBoundsException("column " + c + " of " + cols + " in row " + r);
+                index[start[r] + k] = c;
+                value[start[r] + k] = values[r][k];
+            }
+        }
+    }
+
+    private SparseRows(int cols, int[] start, int[] index, double[] value) {
+        this.cols = cols;
+        this.start = start;
+        this.index = index;
+        this.value = value;
+    }
+
+    // Keeps the nonzero values of a matrix. Missing values are dropped, so they count as 0.
+    public static SparseRows of(Matrix features) {
+        int rows = features.rows(), cols = features.cols();
+        double[] row = new double[cols];
+        int[] start = new int[rows + 1];
+        for (int r = 0; r < rows; r++) {
+            features.copyRow(r, row);
+            int count = 0;
+            for (double v : row) {
+                if (v != 0 && v != Matrix.MISSING)
+                    count++;
+            }
+            start[r + 1] = start[r] + count;
+        }
+        int[] index = new int[start[rows]];
+        double[] value = new double[index.length];
+        for (int r = 0, k = 0; r < rows; r++) {
+            features.copyRow(r, row);
+            for (int c = 0; c < cols; c++) {
+                if (row[c] != 0 && row[c] != Matrix.MISSING) {
+                    index[k] = c;
+                    value[k++] = row[c];
+                }
+            }
+        }
+        return new SparseRows(cols, start, index, value);
+    }
+
+    public int rows() {
+        return start.length - 1;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    // Returns the number of nonzero values in all the rows
+    public int nonzeros() {
+        return index.length;
+    }
+
+    // Returns the dot product of row r with the cols weights starting at offset
+    double dot(int r, double[] weights, int offset) {
+        double sum = 0;
+        for (int k = start[r]; k < start[r + 1]; k++)
+            sum += value[k] * weights[offset + index[k]];
+        return sum;
+    }
+
+    // Adds scale times row r to the cols weights starting at offset
+    void addTo(int r, double scale, double[] weights, int offset) {
+        for (int k = start[r]; k < start[r + 1]; k++)
+            weights[offset + index[k]] += scale * value[k];
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.davityle.ml.benchmark;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+import java.io.File;
+
+/**
+ * Compares the byte-level ARFF parser behind Matrix.loadArff with the original
+ * Scanner-based loader on the same file and reports the throughput of each.
+ *
+ * Usage: ArffLoadBenchmark file.arff [iterations]
+ */
+public class ArffLoadBenchmark {
+
+    @SuppressWarnings("deprecation") // the Scanner loader is the baseline being compared against
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ArffLoadBenchmark file.arff [iterations]");
+            return;
+        }
+        String file = args[0];
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double megabytes = new File(file).length() / (1024.0 * 1024.0);
+
+        Matrix scanner = new Matrix();
+        Matrix rows = new Matrix();
+        Matrix contiguous = new Matrix();
+        double scannerTime = time(iterations, () -> scanner.loadArffWithScanner(file));
+        double rowsTime = time(iterations, () -> rows.loadArff(file));
+        double contiguousTime = time(iterations, () -> contiguous.loadArff(file, true));
+
+        System.out.println("File: " + file + " (" + String.format("%.1f", megabytes) + " MB, " + rows.rows() + " rows)");
+        report("Scanner", megabytes, scannerTime);
+        report("Parser", megabytes, rowsTime);
+        report("Parser (contiguous)", megabytes, contiguousTime);
+        System.out.println("Results identical: " + (same(scanner, rows) && same(scanner, contiguous)));
+    }
+
+    private static double time(int iterations, Load load) throws Exception {
+        load.run(); // warm up
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            load.run();
+            best = Math.min(best, (System.nanoTime() - start) / 1e9);
+        }
+        return best;
+    }
+
+    private static void report(String name, double megabytes, double seconds) {
+        System.out.println(String.format("%-20s %8.3f s %10.1f MB/s", name, seconds, megabytes / seconds));
+    }
+
+    private static boolean same(Matrix a, Matrix b) {
+        if (a.rows() != b.rows() || a.cols() != b.cols())
+            return false;
+        for (int i = 0; i < a.rows(); i++) {
+            for (int j = 0; j < a.cols(); j++) {
+                if (Double.doubleToLongBits(a.get(i, j)) != Double.doubleToLongBits(b.get(i, j)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private interface Load {
+        void run() throws Exception;
+    }
+}
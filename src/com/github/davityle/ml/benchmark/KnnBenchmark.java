@@ -0,0 +1,115 @@
+package com.github.davityle.ml.benchmark;
+
+import com.github.davityle.ml.InstanceBasedLearner;
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+import java.util.Random;
+
+/**
+ * Compares InstanceBasedLearner's approximate (hashed) neighbour search with its exact
+ * search, reporting queries per second and recall@k (the fraction of the exact k nearest
+ * rows the approximate search also returns) for a few hash settings. Uses the specified
+ * ARFF file, whose last column is the label, holding out its last rows as queries, or
+ * random clustered data if no file is given.
+ *
+ * Usage: KnnBenchmark [file.arff] [queries] [k] [tables,bits,probes ...]
+ */
+public class KnnBenchmark {
+
+    private static final int[][] SETTINGS = {
+            // hash tables, bits per key, probes per table
+            {2, 24, 0},
+            {4, 24, 0},
+            {8, 24, 2},
+            {8, 28, 4},
+    };
+
+    public static void main(String[] args) throws Exception {
+        Matrix data = new Matrix();
+        if (args.length > 0 && !args[0].isEmpty())
+            data.loadArff(args[0], true);
+        else
+            clusteredData(data, 200000, 32, 64, new Random(1));
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int[][] settings = SETTINGS;
+        if (args.length > 3) {
+            settings = new int[args.length - 3][3];
+            for (int i = 3; i < args.length; i++) {
+                String[] parts = args[i].split(",");
+                for (int j = 0; j < 3; j++)
+                    settings[i - 3][j] = Integer.parseInt(parts[j]);
+            }
+        }
+
+        int trainRows = data.rows() - queries;
+        Matrix features = Matrix.view(data, 0, 0, trainRows, data.cols() - 1);
+        Matrix labels = Matrix.view(data, 0, data.cols() - 1, trainRows, 1);
+        double[][] rows = new double[queries][data.cols() - 1];
+        for (int i = 0; i < queries; i++)
+            Matrix.view(data, trainRows, 0, queries, data.cols() - 1).copyRow(i, rows[i]);
+
+        InstanceBasedLearner exact = new InstanceBasedLearner(new Random(2));
+        exact.setK(k);
+        exact.train(features, labels);
+        int[][] truth = new int[queries][];
+        double exactRate = run(exact, rows, truth);
+        System.out.println(trainRows + " rows, " + queries + " queries, k=" + k);
+        System.out.println(String.format("%-16s %10.0f queries/s", "exact", exactRate));
+
+        for (int[] setting : settings) {
+            InstanceBasedLearner approximate = new InstanceBasedLearner(new Random(2));
+            approximate.setK(k);
+            approximate.setApproximate(setting[0], setting[1], setting[2]);
+            long start = System.nanoTime();
+            approximate.train(features, labels);
+            double buildTime = (System.nanoTime() - start) / 1e9;
+            int[][] found = new int[queries][];
+            double rate = run(approximate, rows, found);
+            System.out.println(String.format("%-16s %10.0f queries/s %6.1fx   recall@%d %.3f   built in %.2f s",
+                    setting[0] + "x" + setting[1] + " probes " + setting[2], rate, rate / exactRate, k, recall(truth, found), buildTime));
+        }
+    }
+
+    // Finds the neighbours of every query (after one warm-up pass) and returns the queries per second
+    private static double run(InstanceBasedLearner learner, double[][] rows, int[][] found) {
+        for (double[] row : rows)
+            learner.nearest(row);
+        long start = System.nanoTime();
+        for (int i = 0; i < rows.length; i++)
+            found[i] = learner.nearest(rows[i]);
+        return rows.length / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static double recall(int[][] truth, int[][] found) {
+        long hits = 0, total = 0;
+        for (int i = 0; i < truth.length; i++) {
+            for (int row : truth[i]) {
+                for (int candidate : found[i]) {
+                    if (candidate == row) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+            total += truth[i].length;
+        }
+        return (double) hits / total;
+    }
+
+    // Rows drawn around random cluster centres, with the cluster as a continuous label
+    private static void clusteredData(Matrix data, int rows, int cols, int clusters, Random random) {
+        double[][] centres = new double[clusters][cols];
+        for (double[] centre : centres) {
+            for (int j = 0; j < cols; j++)
+                centre[j] = random.nextDouble();
+        }
+        data.setSize(rows, cols + 1);
+        for (int i = 0; i < rows; i++) {
+            int cluster = random.nextInt(clusters);
+            for (int j = 0; j < cols; j++)
+                data.set(i, j, centres[cluster][j] + random.nextGaussian() * 0.05);
+            data.set(i, cols, cluster);
+        }
+    }
+}
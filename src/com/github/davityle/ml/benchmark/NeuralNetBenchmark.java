@@ -0,0 +1,90 @@
+package com.github.davityle.ml.benchmark;
+
+import com.github.davityle.ml.NeuralNet;
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+import java.util.Random;
+
+/**
+ * Measures NeuralNet training throughput (samples per second, including the
+ * validation pass NeuralNet.train makes after every epoch) for a few network
+ * shapes on random data.
+ *
+ * Usage: NeuralNetBenchmark [rows] [epochs] [batch size] [threads]
+ */
+public class NeuralNetBenchmark {
+
+    private static final int[][] SHAPES = {
+            // inputs, hidden layer sizes..., outputs
+            {4, 8, 1},
+            {16, 32, 1},
+            {64, 128, 64, 1},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int epochs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        for (int[] shape : SHAPES) {
+            Matrix features = new Matrix();
+            Matrix labels = new Matrix();
+            randomData(features, labels, rows, shape[0], new Random(1));
+
+            run(shape, features, labels, Math.max(1, epochs / 4), batchSize, threads); // warm up
+            NeuralNet net = new NeuralNet(new Random(2));
+            double seconds = run(net, shape, features, labels, epochs, batchSize, threads);
+            double epochMean = 0;
+            for (double throughput : net.getEpochThroughput())
+                epochMean += throughput / net.getEpochThroughput().size();
+            System.out.println(String.format("%-16s %10.0f samples/s %10.0f samples/s training only",
+                    describe(shape), (double) rows * epochs / seconds, epochMean));
+        }
+    }
+
+    private static double run(int[] shape, Matrix features, Matrix labels, int epochs, int batchSize, int threads) throws Exception {
+        return run(new NeuralNet(new Random(2)), shape, features, labels, epochs, batchSize, threads);
+    }
+
+    private static double run(NeuralNet net, int[] shape, Matrix features, Matrix labels, int epochs, int batchSize, int threads) throws Exception {
+        Random random = new Random(3);
+        NeuralNet.Network network = new NeuralNet.Network();
+        for (int i = 1; i < shape.length; i++)
+            network.addLayer(new NeuralNet.Layer(shape[i], shape[i - 1] + 1, random));
+        network.min = 0;
+        network.max = 1;
+        network.batchSize = batchSize;
+        network.threads = threads;
+        int[] count = {0};
+        network.stoppingConditions = (accuracy, notImproved) -> ++count[0] >= epochs;
+
+        net.setNetwork(network);
+        long start = System.nanoTime();
+        net.train(features, labels);
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private static void randomData(Matrix features, Matrix labels, int rows, int cols, Random random) {
+        features.setSize(rows, cols);
+        labels.setSize(rows, 1);
+        for (int i = 0; i < rows; i++) {
+            double sum = 0;
+            for (int j = 0; j < cols; j++) {
+                double v = random.nextDouble();
+                features.set(i, j, v);
+                sum += v;
+            }
+            labels.set(i, 0, sum > cols / 2.0 ? 1 : 0);
+        }
+    }
+
+    private static String describe(int[] shape) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < shape.length; i++) {
+            if (i > 0)
+                builder.append('-');
+            builder.append(shape[i]);
+        }
+        return builder.toString();
+    }
+}
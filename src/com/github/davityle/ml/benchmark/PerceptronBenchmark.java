@@ -0,0 +1,137 @@
+package com.github.davityle.ml.benchmark;
+
+import com.github.davityle.ml.Perceptron;
+import com.github.davityle.ml.SparseRows;
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times Perceptron training on random sparse rows of increasing width with the same number
+ * of nonzero values per row, plain and averaged, and reports the accuracy of each on held
+ * out rows. At the narrowest width the same rows are also trained as a dense Matrix.
+ *
+ * Usage: PerceptronBenchmark [rows] [nonzeros per row] [classes]
+ */
+public class PerceptronBenchmark {
+
+    private static final int[] WIDTHS = {1000, 10000, 100000};
+    // Number of features that mostly show up in the rows of each class, and the fraction of a
+    // row's features drawn from its class's topic rather than from every feature
+    private static final int TOPIC_SIZE = 200;
+    private static final double TOPIC_SHARE = 0.1;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int nonzeros = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int classes = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int testRows = rows / 5;
+
+        for (int width : WIDTHS) {
+            int[] labels = new int[rows + testRows];
+            int[][] indices = new int[labels.length][];
+            randomRows(width, nonzeros, classes, labels, indices, new Random(width));
+            double[][] values = new double[labels.length][];
+            for (int r = 0; r < labels.length; r++) {
+                values[r] = new double[nonzeros];
+                Arrays.fill(values[r], 1);
+            }
+            SparseRows train = new SparseRows(width, Arrays.copyOf(indices, rows), Arrays.copyOf(values, rows));
+            SparseRows test = new SparseRows(width, Arrays.copyOfRange(indices, rows, labels.length),
+                    Arrays.copyOfRange(values, rows, labels.length));
+
+            System.out.println(width + " columns, " + rows + " rows, " + train.nonzeros() + " nonzeros");
+            for (boolean averaged : new boolean[]{false, true}) {
+                Perceptron perceptron = new Perceptron(new Random(1));
+                perceptron.setAveraged(averaged);
+                long start = System.nanoTime();
+                perceptron.train(train, Arrays.copyOf(labels, rows), classes);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                int correct = 0;
+                for (int r = 0; r < testRows; r++) {
+                    if (perceptron.predict(test, r) == labels[rows + r])
+                        correct++;
+                }
+                report(averaged ? "sparse averaged" : "sparse", seconds, (double) correct / testRows);
+            }
+            if (width == WIDTHS[0])
+                dense(width, classes, rows, labels, indices);
+        }
+    }
+
+    // Trains a plain Perceptron on the same rows loaded into a dense Matrix
+    private static void dense(int width, int classes, int rows, int[] labels, int[][] indices) throws Exception {
+        Matrix data = new Matrix();
+        data.loadArff(arff(width, classes, labels, indices).getPath(), true);
+        Matrix features = Matrix.view(data, 0, 0, rows, width);
+        Matrix trainLabels = Matrix.view(data, 0, width, rows, 1);
+        Perceptron perceptron = new Perceptron(new Random(1));
+        long start = System.nanoTime();
+        perceptron.train(features, trainLabels);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double accuracy = perceptron.measureAccuracy(Matrix.view(data, rows, 0, data.rows() - rows, width),
+                Matrix.view(data, rows, width, data.rows() - rows, 1), null);
+        report("dense Matrix", seconds, accuracy);
+    }
+
+    private static void report(String name, double seconds, double accuracy) {
+        System.out.println(String.format("  %-16s %8.3f s   accuracy %.3f", name, seconds, accuracy));
+    }
+
+    // Each row belongs to a random class and draws some of its features from that class's topic.
+    // Every feature present has the value 1.
+    private static void randomRows(int width, int nonzeros, int classes, int[] labels, int[][] indices, Random random) {
+        int[][] topics = new int[classes][TOPIC_SIZE];
+        for (int[] topic : topics) {
+            for (int i = 0; i < TOPIC_SIZE; i++)
+                topic[i] = random.nextInt(width);
+        }
+        for (int r = 0; r < labels.length; r++) {
+            labels[r] = random.nextInt(classes);
+            int[] row = new int[nonzeros];
+            int count = 0;
+            while (count < nonzeros) {
+                int c = random.nextDouble() < TOPIC_SHARE ? topics[labels[r]][random.nextInt(TOPIC_SIZE)] : random.nextInt(width);
+                boolean seen = false;
+                for (int k = 0; k < count; k++)
+                    seen |= row[k] == c;
+                if (!seen)
+                    row[count++] = c;
+            }
+            Arrays.sort(row);
+            indices[r] = row;
+        }
+    }
+
+    // Writes the rows to a temporary ARFF file with a nominal class as the last column
+    private static File arff(int width, int classes, int[] labels, int[][] indices) throws IOException {
+        File file = File.createTempFile("perceptron", ".arff");
+        file.deleteOnExit();
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println("@RELATION sparse");
+            for (int j = 0; j < width; j++)
+                writer.println("@ATTRIBUTE x" + j + " REAL");
+            StringBuilder values = new StringBuilder();
+            for (int k = 0; k < classes; k++)
+                values.append(k == 0 ? "" : ",").append('c').append(k);
+            writer.println("@ATTRIBUTE class {" + values + "}");
+            writer.println("@DATA");
+            StringBuilder line = new StringBuilder();
+            for (int r = 0; r < labels.length; r++) {
+                line.setLength(0);
+                for (int c = 0, k = 0; c < width; c++) {
+                    boolean present = k < indices[r].length && indices[r][k] == c;
+                    if (present)
+                        k++;
+                    line.append(present ? "1," : "0,");
+                }
+                writer.println(line.append('c').append(labels[r]));
+            }
+        }
+        return file;
+    }
+}
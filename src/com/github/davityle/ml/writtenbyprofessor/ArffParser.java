@@ -0,0 +1,288 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams an ARFF file into a Matrix. The header is handed line by line to
+ * Matrix.parseHeaderLine, but the data section is tokenized directly from the
+ * raw bytes: numbers go through a hand-written double parser and nominal
+ * values are found in a hash table keyed on their bytes, so no String or
+ * Scanner is created per value or per line.
+ */
+class ArffParser {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int INITIAL_ROWS = 1024;
+
+    // Powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Matrix matrix;
+    private boolean readData;
+    private boolean contiguous;
+    private NominalTable[] nominals;
+    private long lineNumber;
+
+    ArffParser(Matrix matrix) {
+        this.matrix = matrix;
+    }
+
+    void parse(String filename, boolean contiguous) throws Exception {
+        this.contiguous = contiguous;
+        try (InputStream in = new FileInputStream(filename)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int end = 0;
+            while (true) {
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0)
+                    break;
+                // the bytes before end are a partial line without a newline
+                int scanStart = end;
+                end += n;
+                int lineStart = 0;
+                for (int i = scanStart; i < end; i++) {
+                    if (buf[i] == '\n') {
+                        line(buf, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                // move the partial last line to the front, growing the buffer if one line fills it
+                int remaining = end - lineStart;
+                if (remaining == buf.length) {
+                    byte[] bigger = new byte[buf.length * 2];
+                    System.arraycopy(buf, 0, bigger, 0, remaining);
+                    buf = bigger;
+                } else {
+                    System.arraycopy(buf, lineStart, buf, 0, remaining);
+                }
+                end = remaining;
+            }
+            if (end > 0)
+                line(buf, 0, end);
+        }
+        // the contiguous array grows by doubling, so drop the unused capacity
+        if (contiguous && matrix.m_values != null && matrix.m_values.length > matrix.m_row_count * matrix.m_stride)
+            matrix.m_values = Arrays.copyOf(matrix.m_values, matrix.m_row_count * matrix.m_stride);
+    }
+
+    private void line(byte[] buf, int start, int end) throws Exception {
+        lineNumber++;
+        while (start < end && isSpace(buf[start]))
+            start++;
+        while (end > start && isSpace(buf[end - 1]))
+            end--;
+        if (start == end || buf[start] == '%')
+            return;
+        if (!readData) {
+            readData = matrix.parseHeaderLine(new String(buf, start, end - start, StandardCharsets.UTF_8));
+            if (readData)
+                startData();
+        } else {
+            try {
+                dataLine(buf, start, end);
+            } catch (Exception e) {
+                throw new Exception("Error parsing line " + lineNumber + ": "
+                        + new String(buf, start, end - start, StandardCharsets.UTF_8) + "\n", e);
+            }
+        }
+    }
+
+    private void startData() {
+        int cols = matrix.cols();
+        nominals = new NominalTable[cols];
+        for (int i = 0; i < cols; i++) {
+            NominalDictionary values = matrix.m_nominal[i];
+            if (values.size() > 0)
+                nominals[i] = new NominalTable(values);
+        }
+        if (contiguous) {
+            matrix.m_data = null;
+            matrix.m_values = new double[INITIAL_ROWS * cols];
+            matrix.m_stride = cols;
+            matrix.m_row_count = 0;
+        }
+    }
+
+    private void dataLine(byte[] buf, int start, int end) throws Exception {
+        int cols = matrix.cols();
+        double[] row;
+        int offset;
+        if (contiguous) {
+            matrix.ensureCapacity(matrix.m_row_count + 1);
+            row = matrix.m_values;
+            offset = matrix.m_row_count * cols;
+        } else {
+            row = new double[cols];
+            offset = 0;
+        }
+
+        int curPos = 0;
+        int tokenStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i < end && buf[i] != ',')
+                continue;
+            int s = tokenStart, e = i;
+            tokenStart = i + 1;
+            while (s < e && isSpace(buf[s]))
+                s++;
+            while (e > s && isSpace(buf[e - 1]))
+                e--;
+            if (s == e)
+                continue; // empty values are skipped, as the Scanner-based loader did
+            if (curPos >= cols)
+                throw new Exception("Expected " + cols + " values");
+
+            double value;
+            if (e - s == 1 && buf[s] == '?') {
+                value = Matrix.MISSING;
+            } else if (nominals[curPos] == null) {
+                value = parseDouble(buf, s, e);
+            } else {
+                int v = nominals[curPos].get(buf, s, e);
+                if (v < 0)
+                    throw new Exception("Error parsing the value '" + new String(buf, s, e - s, StandardCharsets.UTF_8) + "'");
+                value = v;
+            }
+            row[offset + curPos] = value;
+            curPos++;
+        }
+
+        if (contiguous) {
+            matrix.m_row_count++;
+        } else {
+            matrix.m_data.add(row);
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    // Parses a decimal number. Plain numbers with at most 15 significant digits and
+    // a small exponent are converted exactly from a long and a power of ten, anything
+    // else falls back to Double.parseDouble.
+    static double parseDouble(byte[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean seenDigit = false;
+        for (; i < end; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9)
+                break;
+            seenDigit = true;
+            if (digits > 0 || d != 0) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + d;
+                    digits++;
+                } else {
+                    exponent++;
+                }
+            }
+        }
+        if (i < end && buf[i] == '.') {
+            for (i++; i < end; i++) {
+                int d = buf[i] - '0';
+                if (d < 0 || d > 9)
+                    break;
+                seenDigit = true;
+                if (digits > 0 || d != 0) {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + d;
+                        digits++;
+                        exponent--;
+                    }
+                } else {
+                    exponent--;
+                }
+            }
+        }
+        if (seenDigit && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            int j = i + 1;
+            boolean negativeExp = false;
+            if (j < end && (buf[j] == '-' || buf[j] == '+')) {
+                negativeExp = buf[j] == '-';
+                j++;
+            }
+            int exp = 0;
+            int expStart = j;
+            for (; j < end && buf[j] >= '0' && buf[j] <= '9' && exp < 100000; j++)
+                exp = exp * 10 + (buf[j] - '0');
+            if (j > expStart) {
+                exponent += negativeExp ? -exp : exp;
+                i = j;
+            }
+        }
+        if (!seenDigit || i != end || digits > 15 || exponent < -22 || exponent > 22)
+            return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+
+        // a mantissa below 2^53 and a power of ten up to 1e22 are both exact, so one
+        // multiplication or division gives the correctly rounded result
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Open-addressing hash table from the UTF-8 bytes of a nominal value to its enum.
+     */
+    static class NominalTable {
+        private final byte[][] keys;
+        private final int[] values;
+        private final int mask;
+
+        NominalTable(NominalDictionary dictionary) {
+            int capacity = Integer.highestOneBit(Math.max(dictionary.size(), 2) * 4 - 1) << 1;
+            keys = new byte[capacity][];
+            values = new int[capacity];
+            mask = capacity - 1;
+            for (int e = 0; e < dictionary.size(); e++) {
+                byte[] key = dictionary.value(e).getBytes(StandardCharsets.UTF_8);
+                int slot = hash(key, 0, key.length) & mask;
+                while (keys[slot] != null && !matches(keys[slot], key, 0, key.length))
+                    slot = (slot + 1) & mask;
+                keys[slot] = key;
+                values[slot] = e; // a repeated value maps to its last enum, as in the dictionary
+            }
+        }
+
+        // Returns the enum of the value in buf[start, end), or -1 if it is not a known value
+        int get(byte[] buf, int start, int end) {
+            int slot = hash(buf, start, end) & mask;
+            byte[] key;
+            while ((key = keys[slot]) != null) {
+                if (matches(key, buf, start, end))
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static boolean matches(byte[] key, byte[] buf, int start, int end) {
+            if (key.length != end - start)
+                return false;
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != buf[start + i])
+                    return false;
+            }
+            return true;
+        }
+
+        private static int hash(byte[] buf, int start, int end) {
+            int h = 0x811c9dc5;
+            for (int i = start; i < end; i++)
+                h = (h ^ buf[i]) * 0x01000193;
+            return h ^ (h >>> 16);
+        }
+    }
+}
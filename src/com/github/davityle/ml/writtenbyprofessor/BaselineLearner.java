@@ -3,6 +3,8 @@ package com.github.davityle.ml.writtenbyprofessor;// ---------------------------
 // See http://creativecommons.org/publicdomain/zero/1.0/
 // ----------------------------------------------------------------
 
+import java.util.Arrays;
+
 /**
  * For nominal labels, this model simply returns the majority class. For
  * continuous labels, it returns the mean value.
@@ -28,4 +30,14 @@ public class BaselineLearner extends SupervisedLearner {
 			labels[i] = m_labels[i];
 	}
 
+	@Override
+	public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+		Arrays.fill(out, start, end, m_labels[0]);
+	}
+
+	@Override
+	public boolean isPredictThreadSafe() {
+		return true;
+	}
+
 }
@@ -0,0 +1,138 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs repeated k-fold cross-validation with every fold on its own thread.
+ *
+ * Each fold trains a fresh learner from the factory, so folds share nothing but
+ * the (read-only) dataset, which they see through views. The shuffles and the
+ * learner seeds are drawn from the seed in a fixed order before any fold runs.
+ */
+public class CrossValidator {
+
+    public interface LearnerFactory {
+        SupervisedLearner create(Random rand) throws Exception;
+    }
+
+    private final int folds;
+    private final int reps;
+    private final int threads;
+
+    public CrossValidator(int folds, int reps, int threads) throws Exception {
+        if (folds <= 0)
+            throw new Exception("Number of folds must be greater than 0");
+        if (reps <= 0)
+            throw new Exception("Number of repetitions must be greater than 0");
+        if (threads <= 0)
+            throw new Exception("Number of threads must be greater than 0");
+        this.folds = folds;
+        this.reps = reps;
+        this.threads = threads;
+    }
+
+    // Cross-validates the learners made by factory on data, whose last column is the label
+    public Result run(Matrix data, LearnerFactory factory, long seed) throws Exception {
+        Random seeds = new Random(seed);
+        int labelCol = data.cols() - 1;
+        int rows = data.rows();
+
+        List<Callable<double[]>> tasks = new ArrayList<>();
+        for (int j = 0; j < reps; j++) {
+            Matrix shuffled = Matrix.view(data, 0, 0, rows, data.cols());
+            shuffled.shuffle(new Random(seeds.nextLong()));
+            // the folds view it from the workers, which then only read its row mapping
+            shuffled.shareRowIndex();
+            for (int i = 0; i < folds; i++) {
+                int begin = i * rows / folds;
+                int end = (i + 1) * rows / folds;
+                long learnerSeed = seeds.nextLong();
+                tasks.add(() -> {
+                    // the folds are built on the worker so only the running folds hold index arrays
+                    int[] trainRows = new int[rows - (end - begin)];
+                    for (int k = 0; k < begin; k++)
+                        trainRows[k] = k;
+                    for (int k = end; k < rows; k++)
+                        trainRows[begin + k - end] = k;
+                    Matrix trainFeatures = Matrix.view(shuffled, trainRows, 0, labelCol);
+                    Matrix trainLabels = Matrix.view(shuffled, trainRows, labelCol, 1);
+                    Matrix testFeatures = Matrix.view(shuffled, begin, 0, end - begin, labelCol);
+                    Matrix testLabels = Matrix.view(shuffled, begin, labelCol, end - begin, 1);
+                    SupervisedLearner learner = factory.create(new Random(learnerSeed));
+                    long startTime = System.nanoTime();
+                    learner.train(trainFeatures, trainLabels);
+                    double trainTime = (System.nanoTime() - startTime) / 1e9;
+                    double accuracy = learner.measureAccuracy(testFeatures, testLabels, null);
+                    return new double[]{accuracy, trainTime};
+                });
+            }
+        }
+
+        List<double[]> folds = Parallel.invokeAll(tasks, threads);
+        Result result = new Result(reps, this.folds);
+        for (int j = 0; j < reps; j++) {
+            for (int i = 0; i < this.folds; i++) {
+                double[] fold = folds.get(j * this.folds + i);
+                result.accuracy[j][i] = fold[0];
+                result.trainTime[j][i] = fold[1];
+            }
+        }
+        return result;
+    }
+
+    public static class Result {
+        // accuracy and training time (in seconds) of each fold, by repetition then fold
+        public final double[][] accuracy;
+        public final double[][] trainTime;
+
+        Result(int reps, int folds) {
+            accuracy = new double[reps][folds];
+            trainTime = new double[reps][folds];
+        }
+
+        public double meanAccuracy() {
+            return mean(accuracy);
+        }
+
+        public double stdDevAccuracy() {
+            return stdDev(accuracy);
+        }
+
+        public double meanTrainTime() {
+            return mean(trainTime);
+        }
+
+        public double stdDevTrainTime() {
+            return stdDev(trainTime);
+        }
+
+        private static double mean(double[][] values) {
+            double sum = 0;
+            int count = 0;
+            for (double[] rep : values) {
+                for (double v : rep) {
+                    sum += v;
+                    count++;
+                }
+            }
+            return sum / count;
+        }
+
+        // Sample standard deviation over all folds of all repetitions
+        private static double stdDev(double[][] values) {
+            double mean = mean(values);
+            double sum = 0;
+            int count = 0;
+            for (double[] rep : values) {
+                for (double v : rep) {
+                    sum += (v - mean) * (v - mean);
+                    count++;
+                }
+            }
+            return count > 1 ? Math.sqrt(sum / (count - 1)) : 0;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.github.davityle.ml.DecisionTree;
 import com.github.davityle.ml.InstanceBasedLearner;
 import com.github.davityle.ml.NeuralNet;
 import com.github.davityle.ml.Perceptron;
+import com.github.davityle.ml.RandomForest;
 
 import java.util.Random;
 
@@ -12,7 +13,7 @@ import java.util.Random;
  */
 public class Main {
 
-    public SupervisedLearner getLearner(String model, Random rand) throws Exception {
+    public SupervisedLearner getLearner(String model, Random rand, boolean verbose) throws Exception {
         switch (model) {
             case "baseline":
                 return new BaselineLearner();
@@ -21,9 +22,13 @@ public class Main {
             case "neuralnet":
                 return new NeuralNet(rand);
             case "decisiontree":
-                return new DecisionTree();
+                DecisionTree tree = new DecisionTree();
+                tree.setVerbose(verbose);
+                return tree;
+            case "randomforest":
+                return new RandomForest(rand);
             case "knn":
-                return new InstanceBasedLearner();
+                return new InstanceBasedLearner(rand);
             default:
                 throw new Exception("Unrecognized model: " + model);
         }
@@ -31,23 +36,27 @@ public class Main {
 
     public void run(String[] args) throws Exception {
 
-        Random rand = new Random();
-
         //Parse the command line arguments
         ArgParser parser = new ArgParser(args);
+        Random rand = parser.getSeed() != null ? new Random(parser.getSeed()) : new Random();
         String fileName = parser.getARFF(); //File specified by the user
         String learnerName = parser.getLearner(); //Learning algorithm specified by the user
         String evalMethod = parser.getEvaluation(); //Evaluation method specified by the user
         String evalParameter = parser.getEvalParameter(); //Evaluation parameters specified by the user
         boolean printConfusionMatrix = parser.getVerbose();
         boolean normalize = parser.getNormalize();
+        boolean contiguous = parser.getContiguous();
+        boolean cache = parser.getCache();
 
         // Load the model
-        SupervisedLearner learner = getLearner(learnerName, rand);
+        SupervisedLearner learner = getLearner(learnerName, rand, parser.getVerbose());
 
         // Load the ARFF file
         Matrix data = new Matrix();
-        data.loadArff(fileName);
+        if (cache)
+            data.loadArffCached(fileName, contiguous);
+        else
+            data.loadArff(fileName, contiguous);
         if (normalize) {
             System.out.println("Using normalized data\n");
             data.normalize();
@@ -65,8 +74,8 @@ public class Main {
         switch (evalMethod) {
             case "training": {
                 System.out.println("Calculating accuracy on training set...");
-                Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-                Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+                Matrix features = Matrix.view(data, 0, 0, data.rows(), data.cols() - 1);
+                Matrix labels = Matrix.view(data, 0, data.cols() - 1, data.rows(), 1);
                 Matrix confusion = new Matrix();
                 double startTime = System.currentTimeMillis();
                 learner.train(features, labels);
@@ -83,23 +92,26 @@ public class Main {
             }
             case "static": {
                 Matrix testData = new Matrix();
-                testData.loadArff(evalParameter);
+                if (cache)
+                    testData.loadArffCached(evalParameter, contiguous);
+                else
+                    testData.loadArff(evalParameter, contiguous);
                 if (normalize)
                     testData.normalize(); // BUG! This may normalize differently from the training data. It should use the same ranges for normalization!
 
                 System.out.println("Calculating accuracy on separate test set...");
                 System.out.println("Test set name: " + evalParameter);
                 System.out.println("Number of test instances: " + testData.rows());
-                Matrix features = new Matrix(data, 0, 0, data.rows(), data.cols() - 1);
-                Matrix labels = new Matrix(data, 0, data.cols() - 1, data.rows(), 1);
+                Matrix features = Matrix.view(data, 0, 0, data.rows(), data.cols() - 1);
+                Matrix labels = Matrix.view(data, 0, data.cols() - 1, data.rows(), 1);
                 double startTime = System.currentTimeMillis();
                 learner.train(features, labels);
                 double elapsedTime = System.currentTimeMillis() - startTime;
                 System.out.println("Time to train (in seconds): " + elapsedTime / 1000.0);
                 double trainAccuracy = learner.measureAccuracy(features, labels, null);
                 System.out.println("Training set accuracy: " + trainAccuracy);
-                Matrix testFeatures = new Matrix(testData, 0, 0, testData.rows(), testData.cols() - 1);
-                Matrix testLabels = new Matrix(testData, 0, testData.cols() - 1, testData.rows(), 1);
+                Matrix testFeatures = Matrix.view(testData, 0, 0, testData.rows(), testData.cols() - 1);
+                Matrix testLabels = Matrix.view(testData, 0, testData.cols() - 1, testData.rows(), 1);
                 Matrix confusion = new Matrix();
                 double testAccuracy = learner.measureAccuracy(testFeatures, testLabels, confusion);
                 System.out.println("Test set accuracy: " + testAccuracy);
@@ -119,10 +131,10 @@ public class Main {
                 System.out.println("Percentage used for testing: " + (1 - trainPercent));
                 data.shuffle(rand);
                 int trainSize = (int) (trainPercent * data.rows());
-                Matrix trainFeatures = new Matrix(data, 0, 0, trainSize, data.cols() - 1);
-                Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, trainSize, 1);
-                Matrix testFeatures = new Matrix(data, trainSize, 0, data.rows() - trainSize, data.cols() - 1);
-                Matrix testLabels = new Matrix(data, trainSize, data.cols() - 1, data.rows() - trainSize, 1);
+                Matrix trainFeatures = Matrix.view(data, 0, 0, trainSize, data.cols() - 1);
+                Matrix trainLabels = Matrix.view(data, 0, data.cols() - 1, trainSize, 1);
+                Matrix testFeatures = Matrix.view(data, trainSize, 0, data.rows() - trainSize, data.cols() - 1);
+                Matrix testLabels = Matrix.view(data, trainSize, data.cols() - 1, data.rows() - trainSize, 1);
                 double startTime = System.currentTimeMillis();
                 learner.train(trainFeatures, trainLabels);
                 double elapsedTime = System.currentTimeMillis() - startTime;
@@ -142,34 +154,19 @@ public class Main {
             case "cross": {
                 System.out.println("Calculating accuracy using cross-validation...");
                 int folds = Integer.parseInt(evalParameter);
-                if (folds <= 0)
-                    throw new Exception("Number of folds must be greater than 0");
+                int reps = parser.getReps();
+                int threads = parser.getThreads();
                 System.out.println("Number of folds: " + folds);
-                int reps = 1;
-                double sumAccuracy = 0.0;
-                double elapsedTime = 0.0;
+                System.out.println("Number of repetitions: " + reps);
+                System.out.println("Number of threads: " + threads);
+                CrossValidator validator = new CrossValidator(folds, reps, threads);
+                CrossValidator.Result result = validator.run(data, r -> getLearner(learnerName, r, parser.getVerbose()), rand.nextLong());
                 for (int j = 0; j < reps; j++) {
-                    data.shuffle(rand);
-                    for (int i = 0; i < folds; i++) {
-                        int begin = i * data.rows() / folds;
-                        int end = (i + 1) * data.rows() / folds;
-                        Matrix trainFeatures = new Matrix(data, 0, 0, begin, data.cols() - 1);
-                        Matrix trainLabels = new Matrix(data, 0, data.cols() - 1, begin, 1);
-                        Matrix testFeatures = new Matrix(data, begin, 0, end - begin, data.cols() - 1);
-                        Matrix testLabels = new Matrix(data, begin, data.cols() - 1, end - begin, 1);
-                        trainFeatures.add(data, end, 0, data.rows() - end);
-                        trainLabels.add(data, end, data.cols() - 1, data.rows() - end);
-                        double startTime = System.currentTimeMillis();
-                        learner.train(trainFeatures, trainLabels);
-                        elapsedTime += System.currentTimeMillis() - startTime;
-                        double accuracy = learner.measureAccuracy(testFeatures, testLabels, null);
-                        sumAccuracy += accuracy;
-                        System.out.println("Rep=" + j + ", Fold=" + i + ", Accuracy=" + accuracy);
-                    }
+                    for (int i = 0; i < folds; i++)
+                        System.out.println("Rep=" + j + ", Fold=" + i + ", Accuracy=" + result.accuracy[j][i] + ", Time to train (in seconds): " + result.trainTime[j][i]);
                 }
-                elapsedTime /= (reps * folds);
-                System.out.println("Average time to train (in seconds): " + elapsedTime / 1000.0);
-                System.out.println("Mean accuracy=" + (sumAccuracy / (reps * folds)));
+                System.out.println("Average time to train (in seconds): " + result.meanTrainTime() + " (stddev " + result.stdDevTrainTime() + ")");
+                System.out.println("Mean accuracy=" + result.meanAccuracy() + " (stddev " + result.stdDevAccuracy() + ")");
                 break;
             }
         }
@@ -183,6 +180,11 @@ public class Main {
         String evalExtra;
         boolean verbose;
         boolean normalize;
+        boolean contiguous;
+        boolean cache;
+        int reps = 1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Long seed;
 
         public ArgParser(String[] argv) {
             for (int i = 0; i < argv.length; i++) {
@@ -193,6 +195,21 @@ public class Main {
                     case "-N":
                         normalize = true;
                         break;
+                    case "-C":
+                        contiguous = true;
+                        break;
+                    case "-B":
+                        cache = true;
+                        break;
+                    case "-R":
+                        reps = Integer.parseInt(argv[++i]);
+                        break;
+                    case "-T":
+                        threads = Integer.parseInt(argv[++i]);
+                        break;
+                    case "-S":
+                        seed = Long.parseLong(argv[++i]);
+                        break;
                     case "-A":
                         arff = argv[++i];
                         break;
@@ -250,6 +267,26 @@ public class Main {
         public boolean getNormalize() {
             return normalize;
         }
+
+        public boolean getContiguous() {
+            return contiguous;
+        }
+
+        public boolean getCache() {
+            return cache;
+        }
+
+        public int getReps() {
+            return reps;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public Long getSeed() {
+            return seed;
+        }
     }
 
     public static void main(String[] args) throws Exception {
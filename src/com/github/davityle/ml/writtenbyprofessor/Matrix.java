@@ -4,7 +4,9 @@ package com.github.davityle.ml.writtenbyprofessor;// ---------------------------
 // ----------------------------------------------------------------
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Scanner;
@@ -14,15 +16,30 @@ public class Matrix {
     // Data
     ArrayList<double[]> m_data;
 
-    // Meta-data
+    // Contiguous row-major data, used in place of m_data once the matrix has been compacted
+    double[] m_values;
+    int m_row_count;
+    int m_stride;
+
+    // View state. A view reads the storage of the matrix it was created from
+    // through a row mapping and a column offset instead of copying it.
+    boolean m_view;
+    int m_view_rows;
+    int m_row_start;
+    int m_col_start;
+    int[] m_row_index; // storage row of each view row (from m_row_start on), or null for consecutive rows
+    boolean m_owns_index; // true if no other matrix reads m_row_index, so it may be reordered in place
+
+    // Meta-data. While a header is being parsed the arrays may be longer than cols(); only
+    // their first cols() entries are used.
     ArrayList<String> m_attr_name;
-    ArrayList<TreeMap<String, Integer>> m_str_to_enum;
-    ArrayList<TreeMap<Integer, String>> m_enum_to_str;
+    NominalDictionary[] m_nominal; // values of each column, shared with matrices copied or viewed from this one
+    int[] m_value_counts;          // m_nominal[c].size() of each column
 
 
     @Override
     public String toString() {
-        return "\nName : " + m_attr_name + "\nStrToEnum : " + m_str_to_enum + "\nEnumToStr : " + m_enum_to_str;
+        return "\nName : " + m_attr_name + "\nValues : " + Arrays.toString(Arrays.copyOf(m_nominal, cols()));
     }
 
 
@@ -34,112 +51,239 @@ public class Matrix {
 
     // Copies the specified portion of that matrix into this matrix
     public Matrix(Matrix that, int rowStart, int colStart, int rowCount, int colCount) {
-        m_data = new ArrayList<double[]>();
-        for (int j = 0; j < rowCount; j++) {
-            double[] rowSrc = that.row(rowStart + j);
-            double[] rowDest = new double[colCount];
-            System.arraycopy(rowSrc, colStart, rowDest, 0, colCount);
-            m_data.add(rowDest);
+        if (that.m_values != null) {
+            // keep the copy contiguous as well
+            m_values = new double[rowCount * colCount];
+            m_row_count = rowCount;
+            m_stride = colCount;
+            for (int j = 0; j < rowCount; j++)
+                that.copyRow(rowStart + j, colStart, m_values, j * colCount, colCount);
+        } else {
+            m_data = new ArrayList<double[]>();
+            for (int j = 0; j < rowCount; j++) {
+                double[] rowDest = new double[colCount];
+                that.copyRow(rowStart + j, colStart, rowDest, 0, colCount);
+                m_data.add(rowDest);
+            }
         }
+        copyMetaData(that, colStart, colCount);
+    }
+
+    // Returns a view of the specified portion of that matrix. The view shares that
+    // matrix's storage, so creating it costs O(colCount) regardless of the number of
+    // rows, and values set through either matrix are visible in both.
+    public static Matrix view(Matrix that, int rowStart, int colStart, int rowCount, int colCount) {
+        if (rowStart < 0 || rowStart + rowCount > that.rows())
+            throw new IndexOutOfBoundsException("rows " + rowStart + "-" + (rowStart + rowCount) + " of " + that.rows());
+        Matrix m = that.viewOf(colStart, colCount);
+        m.m_row_index = that.m_row_index;
+        // the mapping is now shared, so whichever of the two is reordered first copies it. Once
+        // shareRowIndex has been called that is never written, so views may be taken concurrently.
+        if (that.m_owns_index)
+            that.m_owns_index = false;
+        m.m_row_start = that.m_row_start + rowStart;
+        m.m_view_rows = rowCount;
+        return m;
+    }
+
+    // Returns a view of the specified rows (by index into that matrix) of that matrix.
+    // Rows may be repeated or in any order, which makes this suitable for shuffled,
+    // filtered or bootstrapped subsets.
+    public static Matrix view(Matrix that, int[] rows, int colStart, int colCount) {
+        Matrix m = that.viewOf(colStart, colCount);
+        int[] index = new int[rows.length];
+        for (int j = 0; j < rows.length; j++)
+            index[j] = that.storageRow(rows[j]);
+        m.m_row_index = index;
+        m.m_owns_index = true;
+        m.m_view_rows = rows.length;
+        return m;
+    }
+
+    // Marks the row mapping as shared with views not yet taken, so that several threads may
+    // then take range views of this matrix without writing to it
+    void shareRowIndex() {
+        m_owns_index = false;
+    }
+
+    // Creates a view sharing this matrix's storage, leaving the row mapping to the caller
+    private Matrix viewOf(int colStart, int colCount) {
+        if (colStart < 0 || colStart + colCount > cols())
+            throw new IndexOutOfBoundsException("columns " + colStart + "-" + (colStart + colCount) + " of " + cols());
+        Matrix m = new Matrix();
+        m.m_data = m_data;
+        m.m_values = m_values;
+        m.m_row_count = m_row_count;
+        m.m_stride = m_stride;
+        m.m_view = true;
+        m.m_col_start = m_col_start + colStart;
+        m.copyMetaData(this, colStart, colCount);
+        return m;
+    }
+
+    // Shares the attribute meta-data of the specified columns of that matrix
+    private void copyMetaData(Matrix that, int colStart, int colCount) {
+        m_attr_name = new ArrayList<String>(that.m_attr_name.subList(colStart, colStart + colCount));
+        m_nominal = Arrays.copyOfRange(that.m_nominal, colStart, colStart + colCount);
+        m_value_counts = Arrays.copyOfRange(that.m_value_counts, colStart, colStart + colCount);
+    }
+
+    // Clears the attribute meta-data before a header is parsed
+    void resetMetaData() {
         m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
-        for (int i = 0; i < colCount; i++) {
-            m_attr_name.add(that.attrName(colStart + i));
-            m_str_to_enum.add(that.m_str_to_enum.get(colStart + i));
-            m_enum_to_str.add(that.m_enum_to_str.get(colStart + i));
+        m_nominal = new NominalDictionary[0];
+        m_value_counts = new int[0];
+    }
+
+    // Appends an attribute with the specified values (NominalDictionary.CONTINUOUS if it has none)
+    void addAttribute(String name, NominalDictionary values) {
+        int col = m_attr_name.size();
+        if (col == m_nominal.length) {
+            m_nominal = Arrays.copyOf(m_nominal, Math.max(8, col * 2));
+            m_value_counts = Arrays.copyOf(m_value_counts, m_nominal.length);
         }
+        m_attr_name.add(name);
+        m_nominal[col] = values;
+        m_value_counts[col] = values.size();
+    }
+
+    // Returns true if this matrix is a view of another matrix's storage
+    public boolean isView() {
+        return m_view;
+    }
+
+    // Returns the index of the specified row in the underlying storage
+    private int storageRow(int r) {
+        return m_row_index != null ? m_row_index[m_row_start + r] : m_row_start + r;
+    }
+
+    // Clears the data and any view state before the matrix is refilled
+    void resetStorage() {
+        m_data = new ArrayList<double[]>();
+        m_values = null;
+        m_row_count = 0;
+        m_stride = 0;
+        m_view = false;
+        m_view_rows = 0;
+        m_row_start = 0;
+        m_col_start = 0;
+        m_row_index = null;
+        m_owns_index = false;
     }
 
     // Adds a copy of the specified portion of that matrix to this matrix
     public void add(Matrix that, int rowStart, int colStart, int rowCount) throws Exception {
+        if (m_view)
+            throw new Exception("Rows cannot be added to a view");
         if (colStart + cols() > that.cols())
             throw new Exception("out of range");
         for (int i = 0; i < cols(); i++) {
             if (that.valueCount(colStart + i) != valueCount(i))
                 throw new Exception("incompatible relations");
         }
+        if (m_values != null) {
+            ensureCapacity(m_row_count + rowCount);
+            for (int j = 0; j < rowCount; j++) {
+                that.copyRow(rowStart + j, colStart, m_values, m_row_count * m_stride, m_stride);
+                m_row_count++;
+            }
+            return;
+        }
         for (int j = 0; j < rowCount; j++) {
-            double[] rowSrc = that.row(rowStart + j);
             double[] rowDest = new double[cols()];
-            System.arraycopy(rowSrc, colStart, rowDest, 0, cols());
+            that.copyRow(rowStart + j, colStart, rowDest, 0, cols());
             m_data.add(rowDest);
         }
     }
 
+    // Moves the data into one contiguous row-major array. Scans over a compacted
+    // matrix touch memory sequentially and it holds a single object instead of
+    // one per row, but row() has to return a copy, so hot loops should use get()
+    // or copyRow() instead.
+    // Compacting a view copies its rows into storage of its own.
+    public void compact() {
+        if (m_values != null && !m_view)
+            return;
+        int rows = rows();
+        int cols = cols();
+        double[] values = new double[rows * cols];
+        for (int j = 0; j < rows; j++)
+            copyRow(j, 0, values, j * cols, cols);
+        resetStorage();
+        m_data = null;
+        m_values = values;
+        m_row_count = rows;
+        m_stride = cols;
+    }
+
+    // Returns true if the data is held in one contiguous array
+    public boolean isContiguous() {
+        return m_values != null;
+    }
+
+    // Grows the contiguous array so it can hold at least the specified number of rows
+    void ensureCapacity(int rows) {
+        if (rows * m_stride > m_values.length)
+            m_values = Arrays.copyOf(m_values, Math.max(rows, m_row_count * 2) * m_stride);
+    }
+
     // Resizes this matrix (and sets all attributes to be continuous)
     public void setSize(int rows, int cols) {
-        m_data = new ArrayList<double[]>();
+        resetStorage();
         for (int j = 0; j < rows; j++) {
             double[] row = new double[cols];
             m_data.add(row);
         }
-        m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
-        for (int i = 0; i < cols; i++) {
-            m_attr_name.add("");
-            m_str_to_enum.add(new TreeMap<String, Integer>());
-            m_enum_to_str.add(new TreeMap<Integer, String>());
-        }
+        resetMetaData();
+        for (int i = 0; i < cols; i++)
+            addAttribute("", NominalDictionary.CONTINUOUS);
     }
 
     // Loads from an ARFF file
     public void loadArff(String filename) throws Exception {
-        m_data = new ArrayList<double[]>();
-        m_attr_name = new ArrayList<String>();
-        m_str_to_enum = new ArrayList<TreeMap<String, Integer>>();
-        m_enum_to_str = new ArrayList<TreeMap<Integer, String>>();
+        loadArff(filename, false);
+    }
+
+    // Loads from an ARFF file, streaming the rows straight into contiguous storage if requested
+    public void loadArff(String filename, boolean contiguous) throws Exception {
+        resetStorage();
+        resetMetaData();
+        new ArffParser(this).parse(filename, contiguous);
+    }
+
+    // Loads from an ARFF file through a binary snapshot kept next to it (filename + ".bin").
+    // The snapshot is read back with bulk binary reads instead of parsing the text, and is
+    // rebuilt whenever the size or modification time of the ARFF file changes.
+    public void loadArffCached(String filename, boolean contiguous) throws Exception {
+        File source = new File(filename);
+        File cache = MatrixCache.cacheFile(source);
+        try {
+            if (MatrixCache.read(this, source, cache, contiguous))
+                return;
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable cache " + cache + ": " + e);
+        }
+        loadArff(filename, contiguous);
+        try {
+            MatrixCache.write(this, source, cache);
+        } catch (IOException e) {
+            System.err.println("Could not write cache " + cache + ": " + e);
+        }
+    }
+
+    // Loads from an ARFF file using a Scanner per line. This was the original loader; it is
+    // much slower than loadArff and is only kept as a reference to compare the parser against.
+    @Deprecated
+    public void loadArffWithScanner(String filename) throws Exception {
+        resetStorage();
+        resetMetaData();
         boolean READDATA = false;
         Scanner s = new Scanner(new File(filename));
         while (s.hasNext()) {
             String line = s.nextLine().trim();
             if (line.length() > 0 && line.charAt(0) != '%') {
                 if (!READDATA) {
-
-                    Scanner t = new Scanner(line);
-                    String firstToken = t.next().toUpperCase();
-
-                    if (firstToken.equals("@RELATION")) {
-                        String datasetName = t.nextLine();
-                    }
-
-                    if (firstToken.equals("@ATTRIBUTE")) {
-                        TreeMap<String, Integer> ste = new TreeMap<String, Integer>();
-                        m_str_to_enum.add(ste);
-                        TreeMap<Integer, String> ets = new TreeMap<Integer, String>();
-                        m_enum_to_str.add(ets);
-
-                        Scanner u = new Scanner(line);
-                        if (line.indexOf("'") != -1) u.useDelimiter("'");
-                        u.next();
-                        String attributeName = u.next();
-                        if (line.indexOf("'") != -1) attributeName = "'" + attributeName + "'";
-                        m_attr_name.add(attributeName);
-
-                        int vals = 0;
-                        String type = u.next().trim().toUpperCase();
-                        if (!(type.equals("REAL") || type.equals("CONTINUOUS") || type.equals("INTEGER"))) {
-                            try {
-                                String values = line.substring(line.indexOf("{") + 1, line.indexOf("}"));
-                                Scanner v = new Scanner(values);
-                                v.useDelimiter(",");
-                                while (v.hasNext()) {
-                                    String value = v.next().trim();
-                                    if (value.length() > 0) {
-                                        ste.put(value, new Integer(vals));
-                                        ets.put(new Integer(vals), value);
-                                        vals++;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                throw new Exception("Error parsing line: " + line + "\n" + e.toString());
-                            }
-                        }
-                    }
-                    if (firstToken.equals("@DATA")) {
-                        READDATA = true;
-                    }
+                    READDATA = parseHeaderLine(line);
                 } else {
                     double[] newrow = new double[cols()];
                     int curPos = 0;
@@ -153,7 +297,7 @@ public class Matrix {
 
                             if (textValue.length() > 0) {
                                 double doubleValue;
-                                int vals = m_enum_to_str.get(curPos).size();
+                                int vals = m_value_counts[curPos];
 
                                 //Missing instances appear in the dataset as a double defined as MISSING
                                 if (textValue.equals("?")) {
@@ -166,7 +310,7 @@ public class Matrix {
                                 // Discrete values appear as an index to the "name"
                                 // of that value in the "attributeValue" structure
                                 else {
-                                    doubleValue = m_str_to_enum.get(curPos).get(textValue);
+                                    doubleValue = m_nominal[curPos].indexOf(textValue);
                                     if (doubleValue == -1) {
                                         throw new Exception("Error parsing the value '" + textValue + "' on line: " + line);
                                     }
@@ -185,9 +329,49 @@ public class Matrix {
         }
     }
 
+    // Parses one non-empty, non-comment line of an ARFF header. Returns true at the @DATA line.
+    boolean parseHeaderLine(String line) throws Exception {
+        Scanner t = new Scanner(line);
+        String firstToken = t.next().toUpperCase();
+
+        if (firstToken.equals("@RELATION")) {
+            String datasetName = t.nextLine();
+        }
+
+        if (firstToken.equals("@ATTRIBUTE")) {
+            Scanner u = new Scanner(line);
+            if (line.indexOf("'") != -1) u.useDelimiter("'");
+            u.next();
+            String attributeName = u.next();
+            if (line.indexOf("'") != -1) attributeName = "'" + attributeName + "'";
+
+            ArrayList<String> vals = new ArrayList<String>();
+            String type = u.next().trim().toUpperCase();
+            if (!(type.equals("REAL") || type.equals("CONTINUOUS") || type.equals("INTEGER"))) {
+                try {
+                    String values = line.substring(line.indexOf("{") + 1, line.indexOf("}"));
+                    Scanner v = new Scanner(values);
+                    v.useDelimiter(",");
+                    while (v.hasNext()) {
+                        String value = v.next().trim();
+                        if (value.length() > 0)
+                            vals.add(value);
+                    }
+                } catch (Exception e) {
+                    throw new Exception("Error parsing line: " + line + "\n" + e.toString());
+                }
+            }
+            addAttribute(attributeName, vals.isEmpty() ? NominalDictionary.CONTINUOUS
+                    : new NominalDictionary(vals.toArray(new String[vals.size()])));
+        }
+        return firstToken.equals("@DATA");
+    }
+
     // Returns the number of rows in the matrix
     public int rows() {
-        return m_data.size();
+        if (m_view)
+            return m_view_rows;
+        return m_values != null ? m_row_count : m_data.size();
     }
 
     // Returns the number of columns (or attributes) in the matrix
@@ -195,23 +379,49 @@ public class Matrix {
         return m_attr_name.size();
     }
 
-    // Returns the specified row
+    // Returns the specified row. This is a copy if the matrix is contiguous or a view
+    // of only some of the columns, so writing to it only changes the matrix otherwise.
     public double[] row(int r) {
-        return m_data.get(r);
+        if (m_values == null) {
+            double[] row = m_data.get(storageRow(r));
+            if (m_col_start == 0 && row.length == cols())
+                return row;
+        }
+        double[] row = new double[cols()];
+        copyRow(r, 0, row, 0, row.length);
+        return row;
+    }
+
+    // Copies the specified row into dest
+    public void copyRow(int r, double[] dest) {
+        copyRow(r, 0, dest, 0, cols());
+    }
+
+    // Copies count values of the specified row, starting at column colStart, into dest
+    public void copyRow(int r, int colStart, double[] dest, int destPos, int count) {
+        if (m_values != null)
+            System.arraycopy(m_values, storageRow(r) * m_stride + m_col_start + colStart, dest, destPos, count);
+        else
+            System.arraycopy(m_data.get(storageRow(r)), m_col_start + colStart, dest, destPos, count);
     }
 
     // Returns the element at the specified row and column
     public double get(int r, int c) {
-        return m_data.get(r)[c];
+        if (m_values != null)
+            return m_values[storageRow(r) * m_stride + m_col_start + c];
+        return m_data.get(storageRow(r))[m_col_start + c];
     }
 
     public int getResultsLength(int column) {
-        return m_str_to_enum.get(column).size();
+        return m_value_counts[column];
     }
 
     // Sets the value at the specified row and column
     public void set(int r, int c, double v) {
-        row(r)[c] = v;
+        if (m_values != null)
+            m_values[storageRow(r) * m_stride + m_col_start + c] = v;
+        else
+            m_data.get(storageRow(r))[m_col_start + c] = v;
     }
 
     // Returns the name of the specified attribute
@@ -226,44 +436,82 @@ public class Matrix {
 
     // Returns the name of the specified value
     public String attrValue(int attr, int val) {
-        return m_enum_to_str.get(attr).get(val);
+        return m_nominal[attr].value(val);
     }
 
     // Returns the number of values associated with the specified attribute (or column)
     // 0=continuous, 2=binary, 3=trinary, etc.
     public int valueCount(int col) {
-        return m_enum_to_str.get(col).size();
+        return m_value_counts[col];
     }
 
-    // Shuffles the row order
+    // Shuffles the row order. Shuffling a view only reorders its own row mapping,
+    // leaving the matrix it was created from untouched.
     public void shuffle(Random rand) {
+        double[] tmp = m_values != null && !m_view ? new double[m_stride] : null;
         for (int n = rows(); n > 0; n--) {
             int i = rand.nextInt(n);
-            double[] tmp = row(n - 1);
-            m_data.set(n - 1, row(i));
-            m_data.set(i, tmp);
+            swapRows(n - 1, i, tmp);
         }
     }
 
     // Shuffles the row order with a buddy matrix
     public void shuffle(Random rand, Matrix buddy) {
+        double[] tmp = m_values != null && !m_view ? new double[m_stride] : null;
+        double[] tmp1 = buddy.m_values != null && !buddy.m_view ? new double[buddy.m_stride] : null;
         for (int n = rows(); n > 0; n--) {
             int i = rand.nextInt(n);
-            double[] tmp = row(n - 1);
-            m_data.set(n - 1, row(i));
-            m_data.set(i, tmp);
-
+            swapRows(n - 1, i, tmp);
+            buddy.swapRows(n - 1, i, tmp1);
+        }
+    }
 
-            double[] tmp1 = buddy.row(n - 1);
-            buddy.m_data.set(n - 1, buddy.row(i));
-            buddy.m_data.set(i, tmp1);
+    // Swaps two rows, using tmp as scratch space when the matrix is contiguous
+    private void swapRows(int a, int b, double[] tmp) {
+        if (a == b)
+            return;
+        if (m_view) {
+            ownRowIndex();
+            int t = m_row_index[a];
+            m_row_index[a] = m_row_index[b];
+            m_row_index[b] = t;
+        } else if (m_values != null) {
+            System.arraycopy(m_values, a * m_stride, tmp, 0, m_stride);
+            System.arraycopy(m_values, b * m_stride, m_values, a * m_stride, m_stride);
+            System.arraycopy(tmp, 0, m_values, b * m_stride, m_stride);
+        } else {
+            double[] t = m_data.get(a);
+            m_data.set(a, m_data.get(b));
+            m_data.set(b, t);
         }
     }
 
+    // Gives this view a row mapping of its own so it can be reordered independently
+    private void ownRowIndex() {
+        if (m_owns_index)
+            return;
+        int[] index = new int[m_view_rows];
+        for (int j = 0; j < m_view_rows; j++)
+            index[j] = storageRow(j);
+        m_row_index = index;
+        m_row_start = 0;
+        m_owns_index = true;
+    }
+
     // Returns the mean of the specified column
     public double columnMean(int col) {
         double sum = 0;
         int count = 0;
+        if (m_values != null && !m_view) {
+            for (int i = 0, p = col; i < m_row_count; i++, p += m_stride) {
+                double v = m_values[p];
+                if (v != MISSING) {
+                    sum += v;
+                    count++;
+                }
+            }
+            return sum / count;
+        }
         for (int i = 0; i < rows(); i++) {
             double v = get(i, col);
             if (v != MISSING) {
@@ -325,6 +573,10 @@ public class Matrix {
     }
 
     public void normalize() {
+        if (m_values != null && !m_view) {
+            normalizeContiguous();
+            return;
+        }
         for (int i = 0; i < cols(); i++) {
             if (valueCount(i) == 0) {
                 double min = columnMin(i);
@@ -338,6 +590,36 @@ public class Matrix {
         }
     }
 
+    // Normalizes a contiguous matrix in two sequential passes over the data rather than three per column
+    private void normalizeContiguous() {
+        int cols = cols();
+        boolean[] continuous = new boolean[cols];
+        for (int i = 0; i < cols; i++)
+            continuous[i] = valueCount(i) == 0;
+        double[] min = new double[cols];
+        double[] max = new double[cols];
+        Arrays.fill(min, MISSING);
+        Arrays.fill(max, MISSING);
+        for (int p = 0; p < m_row_count * m_stride; p += m_stride) {
+            for (int i = 0; i < cols; i++) {
+                double v = m_values[p + i];
+                if (v != MISSING) {
+                    if (min[i] == MISSING || v < min[i])
+                        min[i] = v;
+                    if (max[i] == MISSING || v > max[i])
+                        max[i] = v;
+                }
+            }
+        }
+        for (int p = 0; p < m_row_count * m_stride; p += m_stride) {
+            for (int i = 0; i < cols; i++) {
+                double v = m_values[p + i];
+                if (continuous[i] && v != MISSING)
+                    m_values[p + i] = (v - min[i]) / (max[i] - min[i]);
+            }
+        }
+    }
+
     public void print() {
         System.out.println("@RELATION Untitled");
         for (int i = 0; i < m_attr_name.size(); i++) {
@@ -350,21 +632,20 @@ public class Matrix {
                 for (int j = 0; j < vals; j++) {
                     if (j > 0)
                         System.out.print(", ");
-                    System.out.print(m_enum_to_str.get(i).get(j));
+                    System.out.print(attrValue(i, j));
                 }
                 System.out.println("}");
             }
         }
         System.out.println("@DATA");
         for (int i = 0; i < rows(); i++) {
-            double[] r = row(i);
-            for (int j = 0; j < r.length; j++) {
+            for (int j = 0; j < cols(); j++) {
                 if (j > 0)
                     System.out.print(", ");
                 if (valueCount(j) == 0)
-                    System.out.print(r[j]);
+                    System.out.print(get(i, j));
                 else
-                    System.out.print(m_enum_to_str.get(j).get((int) r[j]));
+                    System.out.print(attrValue(j, (int) get(i, j)));
             }
             System.out.println("");
         }
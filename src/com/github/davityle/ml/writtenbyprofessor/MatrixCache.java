@@ -0,0 +1,214 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Binary snapshot of a Matrix loaded from an ARFF file.
+ *
+ * Layout (little-endian):
+ * <pre>
+ *   int    magic, int version, int header length
+ *   header: long source length, long source modification time, int rows, int cols,
+ *           then per column its name, its value count and its nominal values
+ *   padding to a multiple of 8 bytes
+ *   rows * cols doubles, one column after another
+ * </pre>
+ * The source's length and modification time are stored so a snapshot can be
+ * recognised as stale once the ARFF file changes.
+ */
+class MatrixCache {
+
+    private static final int MAGIC = 0x4D4C4D58;
+    private static final int VERSION = 1;
+    private static final int PREFIX_BYTES = 12;
+    private static final int CHUNK_DOUBLES = 1 << 16;
+
+    private MatrixCache() {
+    }
+
+    // Returns the file a snapshot of the specified ARFF file is kept in
+    static File cacheFile(File source) {
+        return new File(source.getPath() + ".bin");
+    }
+
+    // Loads the snapshot into m. Returns false, leaving m untouched, if there is no
+    // snapshot or it does not match the current size and modification time of source.
+    static boolean read(Matrix m, File source, File cache, boolean contiguous) throws IOException {
+        if (!cache.isFile())
+            return false;
+        try (FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < PREFIX_BYTES)
+                return false;
+            ByteBuffer prefix = ByteBuffer.allocate(PREFIX_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, prefix, 0);
+            prefix.flip();
+            if (prefix.getInt() != MAGIC || prefix.getInt() != VERSION)
+                return false;
+            int headerLength = prefix.getInt();
+            if (headerLength < 0 || channel.size() < PREFIX_BYTES + headerLength)
+                return false;
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            readFully(channel, header, PREFIX_BYTES);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+            if (in.readLong() != source.length() || in.readLong() != source.lastModified())
+                return false;
+            int rows = in.readInt();
+            int cols = in.readInt();
+            long dataOffset = align(PREFIX_BYTES + headerLength);
+            if (channel.size() != dataOffset + (long) rows * cols * 8)
+                return false;
+
+            ArrayList<String> names = new ArrayList<String>(cols);
+            NominalDictionary[] dictionaries = new NominalDictionary[cols];
+            for (int c = 0; c < cols; c++) {
+                names.add(in.readUTF());
+                String[] values = new String[in.readInt()];
+                for (int v = 0; v < values.length; v++)
+                    values[v] = in.readUTF();
+                dictionaries[c] = values.length == 0 ? NominalDictionary.CONTINUOUS : new NominalDictionary(values);
+            }
+
+            m.resetStorage();
+            m.resetMetaData();
+            for (int c = 0; c < cols; c++)
+                m.addAttribute(names.get(c), dictionaries[c]);
+            double[] values = null;
+            if (contiguous) {
+                values = new double[rows * cols];
+                m.m_data = null;
+                m.m_values = values;
+                m.m_row_count = rows;
+                m.m_stride = cols;
+            } else {
+                m.m_data.ensureCapacity(rows);
+                for (int r = 0; r < rows; r++)
+                    m.m_data.add(new double[cols]);
+            }
+
+            // read the columns a chunk at a time straight into their rows, so the only
+            // full-size copy of the data is the matrix itself
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_DOUBLES * 8).order(ByteOrder.LITTLE_ENDIAN);
+            long total = (long) rows * cols;
+            long position = dataOffset;
+            int r = 0, c = 0;
+            for (long done = 0; done < total; ) {
+                int count = (int) Math.min(CHUNK_DOUBLES, total - done);
+                chunk.clear();
+                chunk.limit(count * 8);
+                readFully(channel, chunk, position);
+                chunk.flip();
+                DoubleBuffer doubles = chunk.asDoubleBuffer();
+                for (int i = 0; i < count; i++) {
+                    if (contiguous)
+                        values[r * cols + c] = doubles.get(i);
+                    else
+                        m.m_data.get(r)[c] = doubles.get(i);
+                    if (++r == rows) {
+                        r = 0;
+                        c++;
+                    }
+                }
+                position += count * 8L;
+                done += count;
+            }
+            return true;
+        }
+    }
+
+    // Writes a snapshot of m, which was just loaded from source. The snapshot is written to a
+    // temporary file of its own first, so a reader never sees a partially written one and
+    // runs writing the same snapshot at once do not overwrite each other's file.
+    static void write(Matrix m, File source, File cache) throws IOException {
+        int rows = m.rows();
+        int cols = m.cols();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(headerBytes);
+        out.writeLong(source.length());
+        out.writeLong(source.lastModified());
+        out.writeInt(rows);
+        out.writeInt(cols);
+        for (int c = 0; c < cols; c++) {
+            out.writeUTF(m.attrName(c));
+            int values = m.valueCount(c);
+            out.writeInt(values);
+            for (int v = 0; v < values; v++)
+                out.writeUTF(m.attrValue(c, v));
+        }
+        out.flush();
+        byte[] header = headerBytes.toByteArray();
+
+        File dir = cache.getAbsoluteFile().getParentFile();
+        Path tmp = Files.createTempFile(dir.toPath(), cache.getName(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                int dataOffset = (int) align(PREFIX_BYTES + header.length);
+                ByteBuffer prefix = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+                prefix.putInt(MAGIC).putInt(VERSION).putInt(header.length).put(header);
+                prefix.position(dataOffset);
+                prefix.flip();
+                writeFully(channel, prefix);
+
+                ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_DOUBLES * 8).order(ByteOrder.LITTLE_ENDIAN);
+                DoubleBuffer doubles = chunk.asDoubleBuffer();
+                for (int c = 0; c < cols; c++) {
+                    for (int r = 0; r < rows; r++) {
+                        doubles.put(m.get(r, c));
+                        if (!doubles.hasRemaining()) {
+                            flush(channel, chunk, doubles);
+                        }
+                    }
+                }
+                flush(channel, chunk, doubles);
+            }
+            // the rename is atomic where the file system supports it, so readers never see a partial file
+            try {
+                Files.move(tmp, cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer chunk, DoubleBuffer doubles) throws IOException {
+        chunk.position(0);
+        chunk.limit(doubles.position() * 8);
+        writeFully(channel, chunk);
+        chunk.clear();
+        doubles.clear();
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of cache file");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import java.util.Arrays;
+
+/**
+ * The values of one nominal attribute, in enum order. The value of an enum is an array
+ * lookup, and the enum of a value is found in an open-addressing hash table. Values are
+ * interned, so columns that share value names (yes/no, true/false, ...) share the
+ * Strings. A dictionary never changes once built, so matrices copied or viewed from one
+ * another share it by reference.
+ */
+final class NominalDictionary {
+
+    // The dictionary of every continuous attribute
+    static final NominalDictionary CONTINUOUS = new NominalDictionary(new String[0]);
+
+    private final String[] values;  // enum -> value
+    private final String[] keys;    // hash table slots, null where empty
+    private final int[] enums;      // the enum of the value in each slot
+    private final int mask;
+
+    NominalDictionary(String[] values) {
+        this.values = new String[values.length];
+        int capacity = Integer.highestOneBit(Math.max(values.length, 2) * 4 - 1) << 1;
+        keys = new String[capacity];
+        enums = new int[capacity];
+        mask = capacity - 1;
+        for (int e = 0; e < values.length; e++) {
+            String value = values[e].intern();
+            this.values[e] = value;
+            int slot = hash(value) & mask;
+            while (keys[slot] != null && !keys[slot].equals(value))
+                slot = (slot + 1) & mask;
+            // a repeated value maps to its last enum, as it did when the values were kept in a TreeMap
+            keys[slot] = value;
+            enums[slot] = e;
+        }
+    }
+
+    // Returns the number of values, 0 for a continuous attribute
+    int size() {
+        return values.length;
+    }
+
+    // Returns the value with the specified enum
+    String value(int e) {
+        return values[e];
+    }
+
+    // Returns the enum of the specified value, or -1 if it is not one of the values
+    int indexOf(String value) {
+        int slot = hash(value) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key == value || key.equals(value))
+                return enums[slot];
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int hash(String value) {
+        int h = value.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The thread pools the learners and the cross-validator run their tasks on.
+ *
+ * Callers draw any randomness up front and give every task its own share of the work,
+ * so the results never depend on how many threads run the tasks. A task that fails has
+ * its exception rethrown as it was thrown. The threads of a pool of more than one thread
+ * are marked, so work started from a task sees the cores are already busy and keeps to
+ * a single thread rather than nesting another full pool.
+ */
+public final class Parallel {
+
+    // Set on the threads of pools that run several tasks side by side
+    private static final ThreadLocal<Boolean> SHARING_CORES = ThreadLocal.withInitial(() -> false);
+
+    private Parallel() {
+    }
+
+    // Returns true when called from a task that runs alongside other tasks
+    public static boolean sharingCores() {
+        return SHARING_CORES.get();
+    }
+
+    // Returns the number of threads to use when asked for requested, 0 meaning every core:
+    // a single thread inside a task that already shares the cores with others
+    public static int threads(int requested) {
+        if (sharingCores())
+            return 1;
+        return requested > 0 ? requested : Runtime.getRuntime().availableProcessors();
+    }
+
+    // Returns a pool of the specified number of threads, which must be shut down by the caller
+    public static ExecutorService newPool(int threads) {
+        ThreadFactory factory = Executors.defaultThreadFactory();
+        boolean sharing = threads > 1;
+        return Executors.newFixedThreadPool(threads, task -> factory.newThread(() -> {
+            SHARING_CORES.set(sharing);
+            task.run();
+        }));
+    }
+
+    // Runs the tasks on a new pool of at most threads threads and returns their results in task order
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int threads) throws Exception {
+        ExecutorService pool = newPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            return invokeAll(pool, tasks);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // Runs the tasks on pool and returns their results in task order
+    public static <T> List<T> invokeAll(ExecutorService pool, List<? extends Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+        return results;
+    }
+}
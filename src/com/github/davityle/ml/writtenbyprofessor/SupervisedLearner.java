@@ -3,8 +3,14 @@ package com.github.davityle.ml.writtenbyprofessor;// ---------------------------
 // See http://creativecommons.org/publicdomain/zero/1.0/
 // ----------------------------------------------------------------
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public abstract class SupervisedLearner {
 
+    // Rows below which measureAccuracy predicts on the calling thread
+    private static final int PARALLEL_ROWS = 2048;
+
     /**
      * Before you call this method, you need to divide your data
      * into a feature matrix and a label matrix.
@@ -18,6 +24,30 @@ public abstract class SupervisedLearner {
      */
     public abstract void predict(double[] features, double[] labels) throws Exception;
 
+    /**
+     * Predicts the (first) label of every row of features into out, which must have
+     * at least features.rows() elements.
+     */
+    public void predictBatch(Matrix features, double[] out) throws Exception {
+        predictBatch(features, 0, features.rows(), out);
+    }
+
+    /**
+     * Predicts the (first) label of rows start to end - 1 of features, storing the
+     * prediction for row i in out[i]. The default implementation calls predict once
+     * per row; learners that can share work between rows override it.
+     */
+    public void predictBatch(Matrix features, int start, int end, double[] out) throws Exception {
+        double[] pred = new double[1];
+        double[] feat = new double[features.cols()];
+        for (int i = start; i < end; i++) {
+            features.copyRow(i, feat); // views would otherwise allocate a row per call
+            pred[0] = 0.0; // make sure the prediction is not biased by a previous prediction
+            predict(feat, pred);
+            out[i] = pred[0];
+        }
+    }
+
     /**
     * The model must be trained before you call this method. If the label is nominal,
     * it returns the predictive accuracy. If the label is continuous, it returns
@@ -33,17 +63,14 @@ public abstract class SupervisedLearner {
             throw (new Exception("Expected at least one row"));
 
         int labelValues = labels.valueCount(0);
+        double[] predictions = predictAll(features);
         if (labelValues == 0) {
             int correctCount = 0;
             // The label is continuous, so measure root mean squared error
-            double[] pred = new double[1];
             double sse = 0.0;
             for (int i = 0; i < features.rows(); i++) {
-                double[] feat = features.row(i);
-                double[] targ = labels.row(i);
-                pred[0] = 0.0; // make sure the prediction is not biased by a previous prediction
-                predict(feat, pred);
-                double delta = targ[0] - pred[0];
+                double targ = labels.get(i, 0);
+                double delta = targ - predictions[i];
                 if(delta == 0)
                     correctCount++;
                 sse += (delta * delta);
@@ -58,14 +85,11 @@ public abstract class SupervisedLearner {
                     confusion.setAttrName(i, labels.attrValue(0, i));
             }
             int correctCount = 0;
-            double[] prediction = new double[1];
             for (int i = 0; i < features.rows(); i++) {
-                double[] feat = features.row(i);
                 int targ = (int) labels.get(i, 0);
                 if (targ >= labelValues)
                     throw new Exception("The label is out of range");
-                predict(feat, prediction);
-                int pred = (int) prediction[0];
+                int pred = (int) predictions[i];
                 try {
                     if (confusion != null)
                         confusion.set(targ, pred, confusion.get(targ, pred) + 1);
@@ -77,4 +101,76 @@ public abstract class SupervisedLearner {
         }
     }
 
+    /**
+     * Returns true if predict and predictBatch may be called from several threads at once. measureAccuracy
+     * spreads large evaluations across the fork-join pool for learners that return true.
+     */
+    public boolean isPredictThreadSafe() {
+        return false;
+    }
+
+    // Returns the (first) predicted label of every row. The predictions are made in parallel when
+    // predict is thread-safe, and the accuracy is then computed from them in row order, so the
+    // result is the same either way.
+    private double[] predictAll(Matrix features) throws Exception {
+        double[] predictions = new double[features.rows()];
+        if (isPredictThreadSafe() && features.rows() >= PARALLEL_ROWS && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            int leafRows = Math.max(PARALLEL_ROWS / 4, features.rows() / (ForkJoinPool.getCommonPoolParallelism() * 4));
+            try {
+                ForkJoinPool.commonPool().invoke(new PredictTask(features, predictions, 0, features.rows(), leafRows));
+            } catch (RuntimeException e) {
+                // the pool may rethrow a copy of the failure with the original as its cause, so
+                // take the exception wrapped by the innermost PredictFailure
+                Exception original = null;
+                for (Throwable t = e; t != null; t = t.getCause())
+                    if (t instanceof PredictFailure)
+                        original = (Exception) t.getCause();
+                throw original != null ? original : e;
+            }
+        } else {
+            predictBatch(features, predictions);
+        }
+        return predictions;
+    }
+
+    private class PredictTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Matrix features;
+        private final double[] predictions;
+        private final int start, end, leafRows;
+
+        PredictTask(Matrix features, double[] predictions, int start, int end, int leafRows) {
+            this.features = features;
+            this.predictions = predictions;
+            this.start = start;
+            this.end = end;
+            this.leafRows = leafRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= leafRows) {
+                try {
+                    predictBatch(features, start, end, predictions);
+                } catch (Exception e) {
+                    throw new PredictFailure(e);
+                }
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new PredictTask(features, predictions, start, mid, leafRows),
+                        new PredictTask(features, predictions, mid, end, leafRows));
+            }
+        }
+    }
+
+    // Carries an exception thrown by predictBatch out of a PredictTask
+    private static class PredictFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PredictFailure(Exception cause) {
+            super(cause);
+        }
+    }
+
 }
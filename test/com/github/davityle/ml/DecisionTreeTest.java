@@ -0,0 +1,73 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class DecisionTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void splitsAContinuousFeatureMidwayBetweenTheClasses() throws Exception {
+        Matrix data = load("1 a", "2 a", "3 a", "4 a", "5 b", "6 b", "7 b", "8 b", "? a");
+        DecisionTree tree = train(data, new DecisionTree());
+
+        assertEquals(0, tree.splitFeature(0));
+        assertEquals(4.5, tree.threshold(0), 0);
+        assertEquals(2, tree.childCount(0));
+        assertEquals(0, predict(tree, 4.4), 0);
+        assertEquals(1, predict(tree, 4.6), 0);
+    }
+
+    @Test
+    public void minLeafMovesTheThresholdToKeepEnoughRowsOnEachSide() throws Exception {
+        Matrix data = load("1 a", "2 a", "3 a", "4 a", "5 a", "6 a", "7 b", "8 b");
+
+        assertEquals(6.5, train(data, new DecisionTree()).threshold(0), 0);
+
+        DecisionTree tree = new DecisionTree();
+        tree.setMinLeaf(3);
+        assertEquals(5.5, train(data, tree).threshold(0), 0);
+    }
+
+    @Test
+    public void leavesANodeWhoseRowsShareOneValueUnsplit() throws Exception {
+        Matrix data = load("2 a", "2 b", "2 a", "2 b");
+        DecisionTree tree = train(data, new DecisionTree());
+
+        assertEquals(1, tree.nodeCount());
+        assertEquals(-1, tree.splitFeature(0));
+    }
+
+    // Loads rows of "x label" into a matrix of a continuous feature and a label of a or b
+    private Matrix load(String... rows) throws Exception {
+        StringBuilder arff = new StringBuilder("@RELATION test\n@ATTRIBUTE x REAL\n@ATTRIBUTE class {a, b}\n@DATA\n");
+        for (String row : rows)
+            arff.append(row.replace(' ', ',')).append('\n');
+        File file = folder.newFile();
+        Files.write(file.toPath(), arff.toString().getBytes(StandardCharsets.UTF_8));
+        Matrix data = new Matrix();
+        data.loadArff(file.getPath());
+        return data;
+    }
+
+    private static DecisionTree train(Matrix data, DecisionTree tree) throws Exception {
+        tree.train(Matrix.view(data, 0, 0, data.rows(), 1), Matrix.view(data, 0, 1, data.rows(), 1));
+        return tree;
+    }
+
+    private static double predict(DecisionTree tree, double x) throws Exception {
+        double[] label = new double[1];
+        tree.predict(new double[]{x}, label);
+        return label[0];
+    }
+}
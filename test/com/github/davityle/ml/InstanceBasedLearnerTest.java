@@ -0,0 +1,85 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class InstanceBasedLearnerTest {
+
+    @Test
+    public void kdTreeFindsTheNeighboursALinearScanFinds() throws Exception {
+        assertNearestMatchesLinearScan(3, false, true);
+    }
+
+    @Test
+    public void kdTreeBreaksDistanceTiesByRowLikeALinearScan() throws Exception {
+        assertNearestMatchesLinearScan(3, true, true);
+    }
+
+    @Test
+    public void blockedScanFindsTheNeighboursALinearScanFinds() throws Exception {
+        assertNearestMatchesLinearScan(20, true, false); // too many features for the KD-tree
+    }
+
+    // Trains on random rows and compares the neighbours of random queries, a tenth of their values
+    // missing, with those found by sorting every training row by distance. With onGrid every value
+    // is a small integer, so many rows are the same distance from a query; with missing a tenth of
+    // the training values are missing as well.
+    private static void assertNearestMatchesLinearScan(int cols, boolean onGrid, boolean missing) throws Exception {
+        Random random = new Random(3);
+        Matrix features = new Matrix();
+        Matrix labels = new Matrix();
+        features.setSize(600, cols);
+        labels.setSize(600, 1);
+        double[] min = new double[cols], max = new double[cols];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (int r = 0; r < features.rows(); r++) {
+            for (int c = 0; c < cols; c++) {
+                double value = value(random, onGrid, missing);
+                features.set(r, c, value);
+                if (value != Matrix.MISSING) {
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+            }
+        }
+        InstanceBasedLearner learner = new InstanceBasedLearner(new Random(1));
+        learner.setK(7);
+        learner.train(features, labels);
+
+        for (int q = 0; q < 100; q++) {
+            double[] query = new double[cols];
+            for (int c = 0; c < cols; c++)
+                query[c] = value(random, onGrid, true);
+            int[] expected = IntStream.range(0, features.rows()).boxed()
+                    .sorted(Comparator.comparingDouble((Integer r) -> distance(features, r, query, min, max)))
+                    .limit(7).mapToInt(Integer::intValue).toArray();
+            assertArrayEquals("query " + Arrays.toString(query), expected, learner.nearest(query));
+        }
+    }
+
+    private static double value(Random random, boolean onGrid, boolean mayBeMissing) {
+        if (mayBeMissing && random.nextDouble() < 0.1)
+            return Matrix.MISSING;
+        return onGrid ? random.nextInt(4) : random.nextGaussian() * 10;
+    }
+
+    // Squared distance over the features divided by their range, a missing value counting as 1
+    private static double distance(Matrix features, int r, double[] query, double[] min, double[] max) {
+        double sum = 0;
+        for (int c = 0; c < query.length; c++) {
+            double a = query[c], b = features.get(r, c);
+            double scale = max[c] > min[c] ? 1 / (max[c] - min[c]) : 1;
+            double d = a == Matrix.MISSING || b == Matrix.MISSING ? 1 : a * scale - b * scale;
+            sum += d * d;
+        }
+        return sum;
+    }
+}
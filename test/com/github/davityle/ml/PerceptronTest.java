@@ -0,0 +1,67 @@
+package com.github.davityle.ml;
+
+import com.github.davityle.ml.writtenbyprofessor.Matrix;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerceptronTest {
+
+    @Test
+    public void missingValuesCountAsZero() throws Exception {
+        Matrix features = new Matrix();
+        Matrix labels = new Matrix();
+        separableWithMissing(200, features, labels);
+        Perceptron perceptron = new Perceptron(new Random(1));
+
+        perceptron.train(features, labels);
+
+        double[] predictions = new double[features.rows()];
+        perceptron.predictBatch(features, 0, features.rows(), predictions);
+        int correct = 0;
+        for (int r = 0; r < features.rows(); r++) {
+            if (predictions[r] == labels.get(r, 0))
+                correct++;
+        }
+        assertTrue(correct + " of " + features.rows() + " right", correct > 0.9 * features.rows());
+    }
+
+    @Test
+    public void batchAndSingleRowPredictionsAgreeOnMissingValues() throws Exception {
+        Matrix features = new Matrix();
+        Matrix labels = new Matrix();
+        separableWithMissing(50, features, labels);
+        Perceptron perceptron = new Perceptron(new Random(1));
+        perceptron.train(features, labels);
+
+        double[] batch = new double[features.rows()];
+        perceptron.predictBatch(features, 0, features.rows(), batch);
+        double[] label = new double[1];
+        for (int r = 0; r < features.rows(); r++) {
+            double[] row = new double[features.cols()];
+            features.copyRow(r, row);
+            double[] before = row.clone();
+            perceptron.predict(row, label);
+            assertEquals(label[0], batch[r], 0);
+            assertArrayEquals(before, row, 0);
+        }
+    }
+
+    // Rows of two columns, the one matching the row's label near 1 and the other near -1, with
+    // a quarter of the values missing
+    private static void separableWithMissing(int rows, Matrix features, Matrix labels) {
+        Random random = new Random(2);
+        features.setSize(rows, 2);
+        labels.setSize(rows, 1);
+        for (int r = 0; r < rows; r++) {
+            int label = r % 2;
+            for (int c = 0; c < 2; c++)
+                features.set(r, c, random.nextDouble() < 0.25 ? Matrix.MISSING : (c == label ? 1 : -1) + random.nextDouble() * 0.2);
+            labels.set(r, 0, label);
+        }
+    }
+}
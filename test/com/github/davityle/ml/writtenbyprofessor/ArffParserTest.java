@@ -0,0 +1,71 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class ArffParserTest {
+
+    private static final String[] LINES = {
+            "% a comment",
+            "@RELATION test",
+            "@ATTRIBUTE 'petal width' REAL",
+            "@ATTRIBUTE colour {red, green, blue}",
+            "@ATTRIBUTE size CONTINUOUS",
+            "@DATA",
+            "0.12345678901234567890123, red, 1",
+            "?, blue, 123456789012345678901234567890",
+            "-3.141592653589793238462643, ?, 4.9e-324",
+            "1.7976931348623157E308 , green , -0.000000000000000000012345678901234567",
+            "",
+            "12345.678901234567e-3,red,?",
+            "43591.010316006538, blue, 9007199254740993",
+            "2.2250738585072011e-308, green, 1.0000000000000002220446",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesLikeTheScannerLoader() throws Exception {
+        assertSameAsScanner(write("\n"));
+    }
+
+    @Test
+    public void parsesCrlfFilesLikeTheScannerLoader() throws Exception {
+        assertSameAsScanner(write("\r\n"));
+    }
+
+    private File write(String newline) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), (String.join(newline, LINES) + newline).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void assertSameAsScanner(File file) throws Exception {
+        Matrix expected = new Matrix();
+        expected.loadArffWithScanner(file.getPath());
+        assertEquals(7, expected.rows());
+        for (boolean contiguous : new boolean[]{false, true}) {
+            Matrix actual = new Matrix();
+            actual.loadArff(file.getPath(), contiguous);
+            assertEquals(expected.rows(), actual.rows());
+            assertEquals(expected.cols(), actual.cols());
+            for (int c = 0; c < expected.cols(); c++) {
+                assertEquals(expected.attrName(c), actual.attrName(c));
+                assertEquals(expected.valueCount(c), actual.valueCount(c));
+                for (int v = 0; v < expected.valueCount(c); v++)
+                    assertEquals(expected.attrValue(c, v), actual.attrValue(c, v));
+                for (int r = 0; r < expected.rows(); r++)
+                    assertEquals("row " + r + ", column " + c, expected.get(r, c), actual.get(r, c), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MatrixCacheTest {
+
+    private static final String ARFF = "@RELATION test\n"
+            + "@ATTRIBUTE x REAL\n"
+            + "@ATTRIBUTE colour {red, green, blue}\n"
+            + "@DATA\n"
+            + "0.1, red\n"
+            + "?, blue\n"
+            + "-2.5e10, ?\n"
+            + "3, green\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void snapshotReadsBackAsTheParsedMatrix() throws Exception {
+        File source = write("data.arff", ARFF);
+        File cache = MatrixCache.cacheFile(source);
+        Matrix parsed = new Matrix();
+        parsed.loadArff(source.getPath());
+
+        MatrixCache.write(parsed, source, cache);
+
+        for (boolean contiguous : new boolean[]{false, true}) {
+            Matrix read = new Matrix();
+            assertTrue(MatrixCache.read(read, source, cache, contiguous));
+            assertSame(parsed, read);
+        }
+        assertEquals("the temp file should have been moved into place", 2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void snapshotOfAnEditedFileIsIgnored() throws Exception {
+        File source = write("data.arff", ARFF);
+        File cache = MatrixCache.cacheFile(source);
+        Matrix stale = new Matrix();
+        stale.loadArffCached(source.getPath(), false);
+        assertTrue(cache.isFile());
+
+        Files.write(source.toPath(), (ARFF + "4, red\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(source.setLastModified(source.lastModified() + 2000));
+
+        assertFalse(MatrixCache.read(new Matrix(), source, cache, false));
+        Matrix reloaded = new Matrix();
+        reloaded.loadArffCached(source.getPath(), false);
+        assertEquals(5, reloaded.rows());
+        assertTrue("the snapshot should have been rebuilt", MatrixCache.read(new Matrix(), source, cache, false));
+    }
+
+    private File write(String name, String text) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void assertSame(Matrix expected, Matrix actual) {
+        assertEquals(expected.rows(), actual.rows());
+        assertEquals(expected.cols(), actual.cols());
+        for (int c = 0; c < expected.cols(); c++) {
+            assertEquals(expected.attrName(c), actual.attrName(c));
+            assertEquals(expected.valueCount(c), actual.valueCount(c));
+            for (int v = 0; v < expected.valueCount(c); v++)
+                assertEquals(expected.attrValue(c, v), actual.attrValue(c, v));
+            for (int r = 0; r < expected.rows(); r++)
+                assertEquals(expected.get(r, c), actual.get(r, c), 0);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.davityle.ml.writtenbyprofessor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class MatrixTest {
+
+    @Test
+    public void shufflingAViewLeavesRangeViewsOfItUnchanged() {
+        Matrix parent = Matrix.view(numbered(20), new int[]{19, 17, 15, 13, 11, 9, 7, 5, 3, 1, 0, 2, 4, 6, 8, 10, 12, 14, 16, 18}, 0, 1);
+        Matrix sub = Matrix.view(parent, 3, 0, 10, 1);
+        double[] before = column(sub);
+        double[] parentBefore = column(parent);
+
+        parent.shuffle(new Random(1));
+
+        assertFalse("the parent should have been reordered", Arrays.equals(parentBefore, column(parent)));
+        assertArrayEquals(before, column(sub), 0);
+    }
+
+    @Test
+    public void shufflingARangeViewLeavesItsParentUnchanged() {
+        Matrix parent = Matrix.view(numbered(20), new int[]{3, 1, 4, 15, 9, 2, 6, 5, 8, 7, 19, 0, 10, 11, 12, 13, 14, 16, 17, 18}, 0, 1);
+        Matrix sub = Matrix.view(parent, 5, 0, 10, 1);
+        double[] before = column(parent);
+
+        sub.shuffle(new Random(1));
+
+        assertArrayEquals(before, column(parent), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rangeViewsMustLieWithinTheRows() {
+        Matrix.view(numbered(20), 15, 0, 10, 1);
+    }
+
+    // A single column matrix whose row i holds i
+    private static Matrix numbered(int rows) {
+        Matrix m = new Matrix();
+        m.setSize(rows, 1);
+        for (int i = 0; i < rows; i++)
+            m.set(i, 0, i);
+        return m;
+    }
+
+    private static double[] column(Matrix m) {
+        double[] values = new double[m.rows()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = m.get(i, 0);
+        return values;
+    }
+}